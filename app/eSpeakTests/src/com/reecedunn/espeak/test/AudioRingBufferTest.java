@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2013 Reece H. Dunn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.reecedunn.espeak.test;
+
+import java.nio.ByteBuffer;
+
+import android.test.AndroidTestCase;
+
+import com.reecedunn.espeak.AudioRingBuffer;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class AudioRingBufferTest extends AndroidTestCase
+{
+    private static ByteBuffer bytes(int first, int count)
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(count);
+        for (int i = 0; i < count; ++i)
+        {
+            buffer.put((byte)(first + i));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public void testCapacityIsRoundedUpToAPowerOfTwo()
+    {
+        assertThat(new AudioRingBuffer(8).capacity(), is(8));
+        assertThat(new AudioRingBuffer(9).capacity(), is(16));
+        assertThat(new AudioRingBuffer(1000).capacity(), is(1024));
+    }
+
+    public void testWriteAndRead()
+    {
+        AudioRingBuffer ring = new AudioRingBuffer(8);
+        assertThat(ring.write(bytes(0, 5), 5), is(5));
+        assertThat(ring.available(), is(5));
+        assertThat(ring.free(), is(3));
+
+        ByteBuffer data = ring.peek();
+        assertThat(data.remaining(), is(5));
+        assertThat(data.get(data.position()), is((byte)0));
+        assertThat(data.get(data.position() + 4), is((byte)4));
+
+        ring.skip(5);
+        assertThat(ring.available(), is(0));
+        assertThat(ring.peek().remaining(), is(0));
+    }
+
+    public void testWriteIsLimitedToTheFreeSpace()
+    {
+        AudioRingBuffer ring = new AudioRingBuffer(8);
+        ByteBuffer source = bytes(0, 12);
+        assertThat(ring.write(source, 12), is(8));
+        assertThat(source.remaining(), is(4));
+        assertThat(ring.write(source, 4), is(0));
+        assertThat(ring.free(), is(0));
+    }
+
+    public void testWrapAround()
+    {
+        AudioRingBuffer ring = new AudioRingBuffer(8);
+        ring.write(bytes(0, 6), 6);
+        ring.skip(6);
+        assertThat(ring.write(bytes(10, 5), 5), is(5));
+
+        // The first contiguous region ends at the end of the buffer.
+        ByteBuffer data = ring.peek();
+        assertThat(data.remaining(), is(2));
+        assertThat(data.get(data.position()), is((byte)10));
+        ring.skip(2);
+
+        data = ring.peek();
+        assertThat(data.remaining(), is(3));
+        assertThat(data.get(data.position()), is((byte)12));
+        assertThat(data.get(data.position() + 2), is((byte)14));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2013 Reece H. Dunn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.reecedunn.espeak.test;
+
+import java.nio.ByteBuffer;
+
+import android.test.AndroidTestCase;
+
+import com.reecedunn.espeak.ClauseEncoder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ClauseEncoderTest extends AndroidTestCase
+{
+    private static String decode(ClauseEncoder encoder) throws Exception
+    {
+        ByteBuffer buffer = encoder.getBuffer();
+        assertThat(buffer.get(encoder.getLength()), is((byte)0));
+
+        byte[] data = new byte[encoder.getLength()];
+        for (int i = 0; i < data.length; ++i)
+        {
+            data[i] = buffer.get(i);
+        }
+        return new String(data, "UTF-8");
+    }
+
+    public void testShortTextIsASinglePiece() throws Exception
+    {
+        ClauseEncoder encoder = new ClauseEncoder(64);
+        encoder.reset("Hello. World.");
+
+        assertThat(encoder.next(), is(true));
+        assertThat(decode(encoder), is("Hello. World."));
+        assertThat(encoder.getCodePointOffset(), is(0));
+        assertThat(encoder.isLast(), is(true));
+        assertThat(encoder.next(), is(false));
+    }
+
+    public void testSupplementaryCharactersAreEncodedAsUtf8() throws Exception
+    {
+        ClauseEncoder encoder = new ClauseEncoder(64);
+        encoder.reset("a\uD83D\uDE00b");
+
+        assertThat(encoder.next(), is(true));
+        assertThat(encoder.getLength(), is(6));
+        assertThat(decode(encoder), is("a\uD83D\uDE00b"));
+    }
+
+    public void testLongTextIsSplitAtSentences() throws Exception
+    {
+        // 11 characters per piece.
+        ClauseEncoder encoder = new ClauseEncoder(34);
+        encoder.reset("One. Two three. Four five six");
+
+        assertThat(encoder.next(), is(true));
+        assertThat(decode(encoder), is("One."));
+        assertThat(encoder.getCodePointOffset(), is(0));
+
+        assertThat(encoder.next(), is(true));
+        assertThat(decode(encoder), is(" Two three."));
+        assertThat(encoder.getCodePointOffset(), is(4));
+
+        assertThat(encoder.next(), is(true));
+        assertThat(decode(encoder), is(" Four five "));
+        assertThat(encoder.getCodePointOffset(), is(15));
+
+        assertThat(encoder.next(), is(true));
+        assertThat(decode(encoder), is("six"));
+        assertThat(encoder.getCodePointOffset(), is(26));
+        assertThat(encoder.isLast(), is(true));
+
+        assertThat(encoder.next(), is(false));
+    }
+
+    public void testLongTextIsNotSplitAtLineBreaks() throws Exception
+    {
+        // 11 characters per piece.
+        ClauseEncoder encoder = new ClauseEncoder(34);
+        encoder.reset("One\ntwo. Three\n\nfour");
+
+        assertThat(encoder.next(), is(true));
+        assertThat(decode(encoder), is("One\ntwo."));
+
+        assertThat(encoder.next(), is(true));
+        assertThat(decode(encoder), is(" Three\n\n"));
+
+        assertThat(encoder.next(), is(true));
+        assertThat(decode(encoder), is("four"));
+        assertThat(encoder.isLast(), is(true));
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2013 Reece H. Dunn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.reecedunn.espeak.test;
+
+import android.test.AndroidTestCase;
+
+import com.reecedunn.espeak.DictionaryCache;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class DictionaryCacheTest extends AndroidTestCase
+{
+    public void testIsOnDemand()
+    {
+        assertThat(DictionaryCache.isOnDemand("de_dict"), is(true));
+        assertThat(DictionaryCache.isOnDemand("en_dict"), is(false));
+        assertThat(DictionaryCache.isOnDemand("phondata"), is(false));
+        assertThat(DictionaryCache.isOnDemand("lang/gmw/de_dict"), is(false));
+    }
+
+    public void testDictionaryFromLanguage()
+    {
+        assertThat(DictionaryCache.getDictionaryName("name German\nlanguage de\n"), is("de"));
+    }
+
+    public void testDictionaryFromFirstLanguage()
+    {
+        assertThat(DictionaryCache.getDictionaryName("name English (Great Britain)\nlanguage en-gb  2\nlanguage en 2\n"), is("en"));
+        assertThat(DictionaryCache.getDictionaryName("language pt-br\nlanguage pt 6\n"), is("pt"));
+    }
+
+    public void testDictionaryKeyword()
+    {
+        assertThat(DictionaryCache.getDictionaryName("name Norwegian Bokmål\nlanguage nb\nlanguage no\ndictionary no\n"), is("no"));
+        assertThat(DictionaryCache.getDictionaryName("language zh-cmn\nphonemes cmn\ndictionary cmn // Mandarin\n"), is("cmn"));
+    }
+
+    public void testDictionaryBeforeLanguage()
+    {
+        assertThat(DictionaryCache.getDictionaryName("dictionary no\nlanguage nb\n"), is("nb"));
+    }
+
+    public void testCommentsAreIgnored()
+    {
+        assertThat(DictionaryCache.getDictionaryName("//language xx\nlanguage de\n//dictionary yy\n"), is("de"));
+    }
+
+    public void testNoLanguage()
+    {
+        assertThat(DictionaryCache.getDictionaryName("name klatt\nklatt 1\n"), is(nullValue()));
+        assertThat(DictionaryCache.getDictionaryName("language variant\nname Male 1\n"), is(nullValue()));
+    }
+}
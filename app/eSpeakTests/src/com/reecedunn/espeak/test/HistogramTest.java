@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2013 Reece H. Dunn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.reecedunn.espeak.test;
+
+import android.test.AndroidTestCase;
+
+import com.reecedunn.espeak.Histogram;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class HistogramTest extends AndroidTestCase
+{
+    public void testExponentialBounds()
+    {
+        assertThat(Histogram.exponentialBounds(10, 4), is(new long[] { 10, 20, 40, 80 }));
+    }
+
+    public void testValuesAreCountedInTheirBuckets()
+    {
+        Histogram histogram = new Histogram("test", "ms", new long[] { 10, 20, 40 });
+        histogram.record(5);
+        histogram.record(10);
+        histogram.record(11);
+        histogram.record(100);
+
+        assertThat(histogram.getBucketCount(), is(4));
+        assertThat(histogram.getBucketValue(0), is(2L));
+        assertThat(histogram.getBucketValue(1), is(1L));
+        assertThat(histogram.getBucketValue(2), is(0L));
+        assertThat(histogram.getBucketValue(3), is(1L));
+        assertThat(histogram.getBucketBound(3), is(Long.MAX_VALUE));
+
+        assertThat(histogram.getCount(), is(4L));
+        assertThat(histogram.getSum(), is(126L));
+        assertThat(histogram.getMax(), is(100L));
+        assertThat(histogram.getMean(), is(31L));
+    }
+
+    public void testPercentiles()
+    {
+        Histogram histogram = new Histogram("test", "ms", new long[] { 10, 20, 40 });
+        assertThat(histogram.getPercentile(50), is(0L));
+
+        for (int i = 0; i < 9; ++i)
+        {
+            histogram.record(15);
+        }
+        histogram.record(35);
+
+        assertThat(histogram.getPercentile(50), is(20L));
+        assertThat(histogram.getPercentile(90), is(20L));
+        assertThat(histogram.getPercentile(99), is(35L)); // capped at the maximum
+    }
+
+    public void testReset()
+    {
+        Histogram histogram = new Histogram("test", "ms", new long[] { 10 });
+        histogram.record(5);
+        histogram.reset();
+
+        assertThat(histogram.getCount(), is(0L));
+        assertThat(histogram.getMax(), is(0L));
+        assertThat(histogram.getBucketValue(0), is(0L));
+    }
+}
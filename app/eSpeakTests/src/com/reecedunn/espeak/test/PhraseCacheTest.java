@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2013 Reece H. Dunn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.reecedunn.espeak.test;
+
+import java.io.File;
+import java.util.Locale;
+
+import android.test.AndroidTestCase;
+
+import com.reecedunn.espeak.EngineSettings;
+import com.reecedunn.espeak.PhraseCache;
+import com.reecedunn.espeak.SpeechSynthesis;
+import com.reecedunn.espeak.Voice;
+import com.reecedunn.espeak.VoiceVariant;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class PhraseCacheTest extends AndroidTestCase
+{
+    private static final int[] NO_EVENTS = new int[0];
+
+    private PhraseCache mCache;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        File directory = new File(getContext().getCacheDir(), "phrase-cache-test");
+        directory.mkdirs();
+        // Each phrase file has a 4 byte header, so the disk tier holds two 100 byte phrases.
+        mCache = new PhraseCache(directory, 400, 208);
+        mCache.clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        mCache.clear();
+        super.tearDown();
+    }
+
+    public void testMissThenHit()
+    {
+        assertThat(mCache.get("a"), is(nullValue()));
+        mCache.put("a", new byte[] { 1, 2, 3, 4 }, NO_EVENTS);
+        assertThat(mCache.get("a").audio, is(new byte[] { 1, 2, 3, 4 }));
+
+        assertThat(mCache.getMissCount(), is(1L));
+        assertThat(mCache.getMemoryHitCount(), is(1L));
+        assertThat(mCache.getDiskHitCount(), is(0L));
+    }
+
+    public void testPhrasesLargerThanAQuarterOfTheMemoryTierAreNotCached()
+    {
+        mCache.put("large", new byte[101], NO_EVENTS);
+        assertThat(mCache.get("large"), is(nullValue()));
+        assertThat(mCache.getMemoryBytes(), is(0L));
+    }
+
+    public void testLeastRecentlyUsedPhrasesAreEvicted()
+    {
+        mCache.put("a", new byte[100], NO_EVENTS);
+        mCache.put("b", new byte[100], NO_EVENTS);
+        mCache.put("c", new byte[100], NO_EVENTS);
+        mCache.put("d", new byte[100], NO_EVENTS);
+        mCache.awaitDiskWrites();
+        assertThat(mCache.getMemoryBytes(), is(400L));
+        assertThat(mCache.getDiskBytes(), is(208L));
+        assertThat(mCache.getEvictionCount(), is(2L)); // "a" and "b" from the disk tier
+
+        mCache.get("a"); // "a" is now the most recently used phrase in memory
+        mCache.put("e", new byte[100], NO_EVENTS);
+        mCache.awaitDiskWrites();
+        assertThat(mCache.getMemoryBytes(), is(400L));
+        assertThat(mCache.getEvictionCount(), is(4L)); // "b" from memory, "c" from disk
+
+        assertThat(mCache.get("a"), is(notNullValue()));
+        assertThat(mCache.get("b"), is(nullValue()));
+    }
+
+    public void testPhrasesAreReadFromTheDiskTier()
+    {
+        File directory = new File(getContext().getCacheDir(), "phrase-cache-test");
+        mCache.put("a", new byte[] { 5, 6, 7 }, NO_EVENTS);
+        mCache.awaitDiskWrites();
+
+        PhraseCache cache = new PhraseCache(directory, 400, 200);
+        assertThat(cache.get("a").audio, is(new byte[] { 5, 6, 7 }));
+        assertThat(cache.getDiskHitCount(), is(1L));
+        assertThat(cache.get("a").audio, is(new byte[] { 5, 6, 7 }));
+        assertThat(cache.getMemoryHitCount(), is(1L));
+    }
+
+    public void testEventsAreReadFromTheDiskTier()
+    {
+        File directory = new File(getContext().getCacheDir(), "phrase-cache-test");
+        int[] events = new int[] { SpeechSynthesis.EVENT_WORD, 1, 5, 0, SpeechSynthesis.EVENT_WORD, 7, 5, 2 };
+        mCache.put("a", new byte[] { 5, 6, 7, 8 }, events);
+        mCache.awaitDiskWrites();
+
+        PhraseCache cache = new PhraseCache(directory, 400, 200);
+        PhraseCache.Phrase phrase = cache.get("a");
+        assertThat(phrase.audio, is(new byte[] { 5, 6, 7, 8 }));
+        assertThat(phrase.events, is(events));
+        assertThat(cache.getDiskBytes(), is(40L));
+    }
+
+    public void testPendingDiskWritesAreDiscardedWhenCleared()
+    {
+        File directory = new File(getContext().getCacheDir(), "phrase-cache-test");
+        mCache.put("a", new byte[] { 5, 6, 7 }, NO_EVENTS);
+        mCache.clear();
+        mCache.awaitDiskWrites();
+
+        PhraseCache cache = new PhraseCache(directory, 400, 208);
+        assertThat(cache.get("a"), is(nullValue()));
+        assertThat(cache.getDiskBytes(), is(0L));
+    }
+
+    public void testKeyIncludesTheVoiceDataVersion()
+    {
+        File directory = new File(getContext().getCacheDir(), "phrase-cache-test");
+        Voice voice = new Voice("en-gb", "gmw/en", SpeechSynthesis.GENDER_MALE, 0, new Locale("en", "GB"));
+        EngineSettings settings = new EngineSettings(voice, VoiceVariant.parseVoiceVariant(VoiceVariant.MALE), 175, 50, 50, 100, SpeechSynthesis.PUNCT_NONE, "");
+
+        PhraseCache v1 = new PhraseCache(directory, 400, 200, "1.0");
+        PhraseCache v2 = new PhraseCache(directory, 400, 200, "1.1");
+        assertThat(v1.getKey("hello", false, settings), is(new PhraseCache(directory, 400, 200, "1.0").getKey("hello", false, settings)));
+        assertThat(v1.getKey("hello", false, settings), is(not(v2.getKey("hello", false, settings))));
+    }
+}
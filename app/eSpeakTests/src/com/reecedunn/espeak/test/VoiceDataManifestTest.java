@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2013 Reece H. Dunn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.reecedunn.espeak.test;
+
+import android.test.AndroidTestCase;
+
+import com.reecedunn.espeak.VoiceDataManifest;
+
+import java.io.IOException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class VoiceDataManifestTest extends AndroidTestCase
+{
+    private static final String INSTALLED =
+            "aaaa 10 phondata\n" +
+            "bbbb 20 en_dict\n" +
+            "cccc 30 lang/gmw/en\n" +
+            "dddd 40 xx_dict\n";
+
+    private static final String PACKAGED =
+            "aaaa 10 phondata\n" +
+            "bbbc 20 en_dict\n" +
+            "cccc 31 lang/gmw/en\n" +
+            "eeee 50 voices/!v/f1\n";
+
+    public void testParse() throws IOException
+    {
+        VoiceDataManifest manifest = VoiceDataManifest.parse(INSTALLED);
+        assertThat(manifest.size(), is(4));
+        assertThat(manifest.get("en_dict").hash, is("bbbb"));
+        assertThat(manifest.get("en_dict").size, is(20L));
+        assertThat(manifest.get("lang/gmw/en").size, is(30L));
+        assertThat(manifest.get("missing"), is(nullValue()));
+    }
+
+    public void testParseInvalidLine()
+    {
+        try
+        {
+            VoiceDataManifest.parse("aaaa phondata\n");
+            fail("Expected an IOException");
+        }
+        catch (IOException e)
+        {
+        }
+    }
+
+    public void testChangedFiles() throws IOException
+    {
+        VoiceDataManifest installed = VoiceDataManifest.parse(INSTALLED);
+        VoiceDataManifest packaged = VoiceDataManifest.parse(PACKAGED);
+        assertThat(packaged.getChangedFiles(installed).toString(), is("[en_dict, lang/gmw/en, voices/!v/f1]"));
+    }
+
+    public void testRemovedFiles() throws IOException
+    {
+        VoiceDataManifest installed = VoiceDataManifest.parse(INSTALLED);
+        VoiceDataManifest packaged = VoiceDataManifest.parse(PACKAGED);
+        assertThat(packaged.getRemovedFiles(installed).toString(), is("[xx_dict]"));
+    }
+
+    public void testSameManifestHasNoChanges() throws IOException
+    {
+        VoiceDataManifest installed = VoiceDataManifest.parse(INSTALLED);
+        VoiceDataManifest packaged = VoiceDataManifest.parse(INSTALLED);
+        assertThat(packaged.getChangedFiles(installed).isEmpty(), is(true));
+        assertThat(packaged.getRemovedFiles(installed).isEmpty(), is(true));
+    }
+}
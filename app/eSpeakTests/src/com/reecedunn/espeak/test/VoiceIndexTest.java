@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2013 Reece H. Dunn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.reecedunn.espeak.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import android.speech.tts.TextToSpeech;
+import android.test.AndroidTestCase;
+import android.util.Pair;
+
+import com.reecedunn.espeak.SpeechSynthesis;
+import com.reecedunn.espeak.Voice;
+import com.reecedunn.espeak.VoiceIndex;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class VoiceIndexTest extends AndroidTestCase
+{
+    private static Voice voice(String name, Locale locale)
+    {
+        return new Voice(name, name, SpeechSynthesis.GENDER_MALE, SpeechSynthesis.AGE_ANY, locale);
+    }
+
+    private final Voice en = voice("en", new Locale("en"));
+    private final Voice enGB = voice("en-GB", new Locale("en", "GB"));
+    private final Voice enUS = voice("en-US", new Locale("en", "US"));
+    private final Voice fr = voice("fr", new Locale("fr", "FR"));
+    private final Voice frBE = voice("fr-BE", new Locale("fr", "BE"));
+    private final Voice vi = voice("vi", new Locale("vi", "VN"));
+    private final Voice viHue = voice("vi-VN-x-central", new Locale("vi", "VN", "hue"));
+
+    private VoiceIndex createIndex()
+    {
+        List<Voice> voices = new ArrayList<Voice>();
+        voices.add(en);
+        voices.add(enGB);
+        voices.add(enUS);
+        voices.add(fr);
+        voices.add(frBE);
+        voices.add(viHue);
+        voices.add(vi);
+        return new VoiceIndex(voices);
+    }
+
+    public void testFind()
+    {
+        VoiceIndex index = createIndex();
+
+        assertThat(index.find("en", "GB", "").first, is(enGB));
+        assertThat(index.find("en", "GB", "").second, is(TextToSpeech.LANG_COUNTRY_VAR_AVAILABLE));
+        assertThat(index.find("eng", "USA", "").first, is(enUS));
+        assertThat(index.find("en", "GB", "scotland").first, is(enGB));
+        assertThat(index.find("en", "GB", "scotland").second, is(TextToSpeech.LANG_COUNTRY_AVAILABLE));
+        assertThat(index.find("en", "JM", "").second, is(TextToSpeech.LANG_AVAILABLE));
+        assertThat(index.find("de", "", "").first, is(nullValue()));
+        assertThat(index.find("de", "", "").second, is(TextToSpeech.LANG_NOT_SUPPORTED));
+    }
+
+    public void testFindDefault()
+    {
+        VoiceIndex index = createIndex();
+
+        assertThat(index.findDefault("en", "JM", "").first, is(en));
+        assertThat(index.findDefault("en", "JM", "").second, is(TextToSpeech.LANG_AVAILABLE));
+        assertThat(index.findDefault("fr", "CA", "").first, is(fr));
+        assertThat(index.findDefault("vi", "VN", "south").first, is(viHue));
+        assertThat(index.findDefault("vi", "VN", "south").second, is(TextToSpeech.LANG_COUNTRY_AVAILABLE));
+    }
+
+    public void testResultsAreMemoized()
+    {
+        VoiceIndex index = createIndex();
+        assertThat(index.find("en", "GB", ""), is(sameInstance(index.find("en", "GB", ""))));
+        assertThat(index.findDefault("en", "JM", ""), is(sameInstance(index.findDefault("en", "JM", ""))));
+    }
+}
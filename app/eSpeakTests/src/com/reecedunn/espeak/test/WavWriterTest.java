@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2013 Reece H. Dunn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.reecedunn.espeak.test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import android.test.AndroidTestCase;
+
+import com.reecedunn.espeak.WavWriter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class WavWriterTest extends AndroidTestCase
+{
+    public void testHeaderIsPatchedOnClose() throws Exception
+    {
+        File file = new File(getContext().getCacheDir(), "test.wav");
+        WavWriter writer = new WavWriter(file, 22050, 1, 2);
+        writer.write(ByteBuffer.allocateDirect(4410));
+        writer.write(ByteBuffer.allocate(4410));
+        assertThat(writer.getDataLength(), is(8820L));
+        assertThat(writer.getDurationMillis(), is(200L));
+        writer.close();
+
+        assertThat(file.length(), is((long)(WavWriter.HEADER_SIZE + 8820)));
+
+        byte[] data = new byte[WavWriter.HEADER_SIZE];
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        in.readFully(data);
+        in.close();
+        file.delete();
+
+        ByteBuffer header = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        assertThat(new String(data, 0, 4, "US-ASCII"), is("RIFF"));
+        assertThat(header.getInt(4), is(8820 + 36));
+        assertThat(new String(data, 8, 4, "US-ASCII"), is("WAVE"));
+        assertThat(header.getShort(20), is((short)1));
+        assertThat(header.getShort(22), is((short)1));
+        assertThat(header.getInt(24), is(22050));
+        assertThat(header.getInt(28), is(44100));
+        assertThat(header.getShort(34), is((short)16));
+        assertThat(new String(data, 36, 4, "US-ASCII"), is("data"));
+        assertThat(header.getInt(40), is(8820));
+    }
+}
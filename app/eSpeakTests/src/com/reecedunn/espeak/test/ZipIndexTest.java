@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2013 Reece H. Dunn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.reecedunn.espeak.test;
+
+import android.test.AndroidTestCase;
+
+import com.reecedunn.espeak.ZipIndex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ZipIndexTest extends AndroidTestCase
+{
+    private static final int ARCHIVE_OFFSET = 777;
+
+    private File mFile;
+    private FileInputStream mStream;
+    private byte[] mDictionary;
+    private int mArchiveLength;
+
+    public void setUp() throws Exception
+    {
+        super.setUp();
+
+        mDictionary = new byte[100000];
+        for (int i = 0; i < mDictionary.length; ++i)
+        {
+            mDictionary[i] = (byte)(i % 251);
+        }
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(archive);
+        zip.putNextEntry(new ZipEntry("espeak-ng-data/"));
+        zip.closeEntry();
+        zip.putNextEntry(new ZipEntry("espeak-ng-data/en_dict"));
+        zip.write(mDictionary);
+        zip.closeEntry();
+
+        byte[] phontab = "phontab".getBytes("UTF-8");
+        CRC32 crc = new CRC32();
+        crc.update(phontab);
+        ZipEntry stored = new ZipEntry("espeak-ng-data/phontab");
+        stored.setMethod(ZipEntry.STORED);
+        stored.setSize(phontab.length);
+        stored.setCompressedSize(phontab.length);
+        stored.setCrc(crc.getValue());
+        zip.putNextEntry(stored);
+        zip.write(phontab);
+        zip.closeEntry();
+        zip.setComment("comment");
+        zip.close();
+
+        // Embed the archive in a larger file, as it is in the APK.
+        mArchiveLength = archive.size();
+        mFile = new File(getContext().getCacheDir(), "zipindex.bin");
+        FileOutputStream output = new FileOutputStream(mFile);
+        output.write(new byte[ARCHIVE_OFFSET]);
+        output.write(archive.toByteArray());
+        output.write(new byte[50]);
+        output.close();
+
+        mStream = new FileInputStream(mFile);
+    }
+
+    public void tearDown() throws Exception
+    {
+        mStream.close();
+        mFile.delete();
+        super.tearDown();
+    }
+
+    private static byte[] readAll(InputStream stream) throws IOException
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = stream.read(buffer)) != -1)
+        {
+            output.write(buffer, 0, read);
+        }
+        stream.close();
+        return output.toByteArray();
+    }
+
+    public void testEntries() throws IOException
+    {
+        ZipIndex index = new ZipIndex(mStream.getChannel(), ARCHIVE_OFFSET, mArchiveLength);
+        List<ZipIndex.Entry> entries = index.getEntries();
+        assertThat(entries.size(), is(3));
+
+        assertThat(entries.get(0).name, is("espeak-ng-data/"));
+        assertThat(entries.get(0).isDirectory(), is(true));
+
+        assertThat(entries.get(1).name, is("espeak-ng-data/en_dict"));
+        assertThat(entries.get(1).isDirectory(), is(false));
+        assertThat(entries.get(1).method, is(ZipIndex.METHOD_DEFLATED));
+        assertThat(entries.get(1).size, is((long)mDictionary.length));
+
+        assertThat(entries.get(2).name, is("espeak-ng-data/phontab"));
+        assertThat(entries.get(2).method, is(ZipIndex.METHOD_STORED));
+        assertThat(entries.get(2).size, is(7L));
+        assertThat(entries.get(2).compressedSize, is(7L));
+    }
+
+    public void testOpenDeflatedEntry() throws IOException
+    {
+        ZipIndex index = new ZipIndex(mStream.getChannel(), ARCHIVE_OFFSET, mArchiveLength);
+        assertThat(readAll(index.open(index.getEntries().get(1))), is(mDictionary));
+    }
+
+    public void testOpenStoredEntry() throws IOException
+    {
+        ZipIndex index = new ZipIndex(mStream.getChannel(), ARCHIVE_OFFSET, mArchiveLength);
+        assertThat(new String(readAll(index.open(index.getEntries().get(2))), "UTF-8"), is("phontab"));
+    }
+
+    public void testTransferStoredEntry() throws IOException
+    {
+        ZipIndex index = new ZipIndex(mStream.getChannel(), ARCHIVE_OFFSET, mArchiveLength);
+        File output = new File(getContext().getCacheDir(), "zipindex.out");
+        FileOutputStream stream = new FileOutputStream(output);
+        try
+        {
+            index.transferTo(index.getEntries().get(2), stream.getChannel());
+        }
+        finally
+        {
+            stream.close();
+        }
+
+        assertThat(new String(readAll(new FileInputStream(output)), "UTF-8"), is("phontab"));
+        output.delete();
+    }
+
+    public void testTransferStoredEntryInSlices() throws IOException
+    {
+        ZipIndex index = new ZipIndex(mStream.getChannel(), ARCHIVE_OFFSET, mArchiveLength);
+        ZipIndex.Entry entry = index.getEntries().get(2);
+        File output = new File(getContext().getCacheDir(), "zipindex.out");
+        FileOutputStream stream = new FileOutputStream(output);
+        try
+        {
+            index.transferTo(entry, 0, 3, stream.getChannel());
+            index.transferTo(entry, 3, 4, stream.getChannel());
+        }
+        finally
+        {
+            stream.close();
+        }
+
+        assertThat(new String(readAll(new FileInputStream(output)), "UTF-8"), is("phontab"));
+        output.delete();
+    }
+
+    public void testTransferOutsideOfTheEntry() throws IOException
+    {
+        ZipIndex index = new ZipIndex(mStream.getChannel(), ARCHIVE_OFFSET, mArchiveLength);
+        try
+        {
+            index.transferTo(index.getEntries().get(2), 5, 3, null);
+            fail("Expected an IOException");
+        }
+        catch (IOException e)
+        {
+        }
+    }
+
+    public void testNotAnArchive()
+    {
+        try
+        {
+            new ZipIndex(mStream.getChannel(), 0, ARCHIVE_OFFSET);
+            fail("Expected an IOException");
+        }
+        catch (IOException e)
+        {
+        }
+    }
+}
@@ -36,6 +36,7 @@
 #include <ucd/ucd.h>
 
 #include "common.h"
+#include "dataarchive.h"
 #include "translate.h"
 
 #pragma GCC visibility push(default)
@@ -44,6 +45,10 @@ int GetFileLength(const char *filename)
 {
 	struct stat statbuf;
 
+	int length = GetDataArchiveFileLength(filename);
+	if (length != -ENOENT)
+		return length;
+
 	if (stat(filename, &statbuf) != 0)
 		return -errno;
 
@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2013 Reece H. Dunn
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see: <http://www.gnu.org/licenses/>.
+ */
+
+#include "config.h"
+
+#include <errno.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
+#include <espeak-ng/espeak_ng.h>
+
+#include "dataarchive.h"
+#include "speech.h"                   // for path_home, PATHSEP
+
+#define ZIP_LOCAL_HEADER_SIGNATURE   0x04034b50
+#define ZIP_CENTRAL_HEADER_SIGNATURE 0x02014b50
+#define ZIP_END_SIGNATURE            0x06054b50
+
+#define ZIP_LOCAL_HEADER_SIZE   30
+#define ZIP_CENTRAL_HEADER_SIZE 46
+#define ZIP_END_SIZE            22
+#define ZIP_MAX_COMMENT_SIZE    0xFFFF
+
+#define ZIP_METHOD_STORED 0
+
+// The directory the archive entries are stored under.
+static const char archive_root[] = "espeak-ng-data/";
+
+typedef struct {
+	char *name;                // relative to path_home
+	const unsigned char *data;
+	size_t size;
+} DATA_ARCHIVE_ENTRY;
+
+static void *archive_map = NULL;
+static size_t archive_map_size = 0;
+static DATA_ARCHIVE_ENTRY *archive_entries = NULL;
+static int n_archive_entries = 0;
+
+static unsigned int Read2(const unsigned char *p)
+{
+	return p[0] | (p[1] << 8);
+}
+
+static uint32_t Read4(const unsigned char *p)
+{
+	return (uint32_t)p[0] | ((uint32_t)p[1] << 8) | ((uint32_t)p[2] << 16) | ((uint32_t)p[3] << 24);
+}
+
+static int CompareEntries(const void *a, const void *b)
+{
+	return strcmp(((const DATA_ARCHIVE_ENTRY *)a)->name, ((const DATA_ARCHIVE_ENTRY *)b)->name);
+}
+
+static espeak_ng_STATUS ReadCentralDirectory(const unsigned char *archive, size_t length)
+{
+	const unsigned char *end = NULL;
+	size_t pos;
+
+	if (length < ZIP_END_SIZE)
+		return ENS_NOT_SUPPORTED;
+
+	// The end of central directory record is followed by a comment of up to 64K.
+	pos = length - ZIP_END_SIZE;
+	for (;;) {
+		if (Read4(archive + pos) == ZIP_END_SIGNATURE) {
+			end = archive + pos;
+			break;
+		}
+		if (pos == 0 || length - ZIP_END_SIZE - pos >= ZIP_MAX_COMMENT_SIZE)
+			break;
+		pos--;
+	}
+	if (end == NULL)
+		return ENS_NOT_SUPPORTED;
+
+	int count = Read2(end + 10);
+	size_t directory_size = Read4(end + 12);
+	size_t directory_offset = Read4(end + 16);
+	if (directory_offset > length || directory_size > length - directory_offset)
+		return ENS_NOT_SUPPORTED;
+
+	if ((archive_entries = calloc(count, sizeof(DATA_ARCHIVE_ENTRY))) == NULL)
+		return ENOMEM;
+
+	const unsigned char *p = archive + directory_offset;
+	const unsigned char *directory_end = p + directory_size;
+	for (int i = 0; i < count; i++) {
+		if (p + ZIP_CENTRAL_HEADER_SIZE > directory_end || Read4(p) != ZIP_CENTRAL_HEADER_SIGNATURE)
+			return ENS_NOT_SUPPORTED;
+
+		unsigned int method = Read2(p + 10);
+		size_t compressed_size = Read4(p + 20);
+		size_t size = Read4(p + 24);
+		size_t name_length = Read2(p + 28);
+		size_t extra_length = Read2(p + 30);
+		size_t comment_length = Read2(p + 32);
+		size_t local_offset = Read4(p + 42);
+		const char *name = (const char *)p + ZIP_CENTRAL_HEADER_SIZE;
+
+		if (p + ZIP_CENTRAL_HEADER_SIZE + name_length > directory_end)
+			return ENS_NOT_SUPPORTED;
+		p += ZIP_CENTRAL_HEADER_SIZE + name_length + extra_length + comment_length;
+
+		if (name_length > 0 && name[name_length-1] == '/')
+			continue; // directories are implied by the file names
+		if (method != ZIP_METHOD_STORED || compressed_size != size)
+			return ENS_NOT_SUPPORTED; // the file cannot be read in place
+
+		if (local_offset > length - ZIP_LOCAL_HEADER_SIZE || Read4(archive + local_offset) != ZIP_LOCAL_HEADER_SIGNATURE)
+			return ENS_NOT_SUPPORTED;
+		size_t data_offset = local_offset + ZIP_LOCAL_HEADER_SIZE + Read2(archive + local_offset + 26) + Read2(archive + local_offset + 28);
+		if (data_offset > length || size > length - data_offset)
+			return ENS_NOT_SUPPORTED;
+
+		if (name_length >= sizeof(archive_root)-1 && memcmp(name, archive_root, sizeof(archive_root)-1) == 0) {
+			name += sizeof(archive_root)-1;
+			name_length -= sizeof(archive_root)-1;
+		}
+
+		DATA_ARCHIVE_ENTRY *entry = &archive_entries[n_archive_entries];
+		if ((entry->name = malloc(name_length + 1)) == NULL)
+			return ENOMEM;
+		memcpy(entry->name, name, name_length);
+		entry->name[name_length] = 0;
+		entry->data = archive + data_offset;
+		entry->size = size;
+		n_archive_entries++;
+	}
+
+	qsort(archive_entries, n_archive_entries, sizeof(DATA_ARCHIVE_ENTRY), CompareEntries);
+	return ENS_OK;
+}
+
+espeak_ng_STATUS OpenDataArchive(int fd, off_t offset, size_t length)
+{
+	CloseDataArchive();
+
+	// The mapping must start on a page boundary, which the archive need not.
+	off_t page_size = sysconf(_SC_PAGESIZE);
+	off_t map_offset = offset - (offset % page_size);
+	size_t delta = offset - map_offset;
+
+	archive_map_size = length + delta;
+	archive_map = mmap(NULL, archive_map_size, PROT_READ, MAP_PRIVATE, fd, map_offset);
+	if (archive_map == MAP_FAILED) {
+		archive_map = NULL;
+		return errno;
+	}
+
+	espeak_ng_STATUS status = ReadCentralDirectory((const unsigned char *)archive_map + delta, length);
+	if (status != ENS_OK) {
+		CloseDataArchive();
+		return status;
+	}
+	return ENS_OK;
+}
+
+void CloseDataArchive(void)
+{
+	for (int i = 0; i < n_archive_entries; i++)
+		free(archive_entries[i].name);
+	free(archive_entries);
+	archive_entries = NULL;
+	n_archive_entries = 0;
+
+	if (archive_map != NULL) {
+		munmap(archive_map, archive_map_size);
+		archive_map = NULL;
+		archive_map_size = 0;
+	}
+}
+
+// Gets the path relative to path_home, or NULL if the path is not under it.
+static const char *GetArchivePath(const char *path)
+{
+	size_t len = strlen(path_home);
+
+	if (archive_entries == NULL || strncmp(path, path_home, len) != 0)
+		return NULL;
+	if (path[len] == 0)
+		return path + len;
+	if (path[len] != PATHSEP)
+		return NULL;
+	return path + len + 1;
+}
+
+// Gets the index of the first entry that is not less than name.
+static int LowerBound(const char *name)
+{
+	int low = 0;
+	int high = n_archive_entries;
+
+	while (low < high) {
+		int mid = (low + high) / 2;
+		if (strcmp(archive_entries[mid].name, name) < 0)
+			low = mid + 1;
+		else
+			high = mid;
+	}
+	return low;
+}
+
+static const DATA_ARCHIVE_ENTRY *FindEntry(const char *name)
+{
+	int ix = LowerBound(name);
+	if (ix < n_archive_entries && strcmp(archive_entries[ix].name, name) == 0)
+		return &archive_entries[ix];
+	return NULL;
+}
+
+// Checks whether name is the archive root or a directory containing entries.
+static int IsDirectory(const char *name)
+{
+	size_t len = strlen(name);
+	char prefix[N_PATH_HOME+2];
+
+	if (len == 0)
+		return 1;
+	if (len + 2 > sizeof(prefix))
+		return 0;
+
+	sprintf(prefix, "%s/", name);
+	int ix = LowerBound(prefix);
+	return ix < n_archive_entries && strncmp(archive_entries[ix].name, prefix, len+1) == 0;
+}
+
+// Checks whether a dictionary has been imported into path_home, as it then
+// replaces the dictionary in the archive. The other files are only read from
+// the archive, so data left from an older extracted install is not used.
+static int IsImportedFile(const char *path, const char *name)
+{
+	static const char dict_suffix[] = "_dict";
+	size_t len = strlen(name);
+	struct stat statbuf;
+
+	if (len < sizeof(dict_suffix) - 1 || strcmp(name + len - (sizeof(dict_suffix) - 1), dict_suffix) != 0)
+		return 0;
+	return stat(path, &statbuf) == 0 && S_ISREG(statbuf.st_mode);
+}
+
+int GetDataArchiveFileLength(const char *path)
+{
+	const char *name = GetArchivePath(path);
+	if (name == NULL || IsImportedFile(path, name))
+		return -ENOENT;
+
+	const DATA_ARCHIVE_ENTRY *entry = FindEntry(name);
+	if (entry != NULL)
+		return entry->size;
+	if (IsDirectory(name))
+		return -EISDIR;
+	return -ENOENT;
+}
+
+#if defined(__BIONIC__) || defined(__APPLE__)
+// fmemopen is not available before Android 6.0, so use a read-only funopen stream.
+
+typedef struct {
+	const unsigned char *data;
+	size_t size;
+	size_t pos;
+} DATA_FILE;
+
+static int ReadDataFile(void *cookie, char *buf, int size)
+{
+	DATA_FILE *file = (DATA_FILE *)cookie;
+	size_t available = file->size - file->pos;
+	size_t count = ((size_t)size < available) ? (size_t)size : available;
+
+	memcpy(buf, file->data + file->pos, count);
+	file->pos += count;
+	return count;
+}
+
+static fpos_t SeekDataFile(void *cookie, fpos_t offset, int whence)
+{
+	DATA_FILE *file = (DATA_FILE *)cookie;
+	fpos_t pos;
+
+	switch (whence)
+	{
+	case SEEK_SET: pos = offset; break;
+	case SEEK_CUR: pos = file->pos + offset; break;
+	case SEEK_END: pos = file->size + offset; break;
+	default: errno = EINVAL; return -1;
+	}
+	if (pos < 0 || (size_t)pos > file->size) {
+		errno = EINVAL;
+		return -1;
+	}
+	file->pos = pos;
+	return pos;
+}
+
+static int CloseDataFile(void *cookie)
+{
+	free(cookie);
+	return 0;
+}
+
+static FILE *OpenArchiveEntry(const DATA_ARCHIVE_ENTRY *entry)
+{
+	DATA_FILE *file = malloc(sizeof(DATA_FILE));
+	if (file == NULL)
+		return NULL;
+
+	file->data = entry->data;
+	file->size = entry->size;
+	file->pos = 0;
+
+	FILE *f = funopen(file, ReadDataFile, NULL, SeekDataFile, CloseDataFile);
+	if (f == NULL)
+		free(file);
+	return f;
+}
+#else
+static FILE *OpenArchiveEntry(const DATA_ARCHIVE_ENTRY *entry)
+{
+	if (entry->size == 0)
+		return fopen("/dev/null", "rb");
+	return fmemopen((void *)entry->data, entry->size, "rb");
+}
+#endif
+
+FILE *OpenDataFile(const char *path, const char *mode)
+{
+	const char *name = GetArchivePath(path);
+	if (name != NULL && mode[0] == 'r' && !IsImportedFile(path, name)) {
+		const DATA_ARCHIVE_ENTRY *entry = FindEntry(name);
+		if (entry != NULL)
+			return OpenArchiveEntry(entry);
+	}
+	return fopen(path, mode);
+}
+
+void ListDataArchiveDirectory(const char *path, DATA_ARCHIVE_LIST_CALLBACK callback, void *data)
+{
+	const char *name = GetArchivePath(path);
+	char prefix[N_PATH_HOME+2];
+	char child[N_PATH_HOME+100];
+	size_t len;
+
+	if (name == NULL)
+		return;
+
+	len = strlen(name);
+	if (len + 2 > sizeof(prefix))
+		return;
+	if (len == 0)
+		prefix[0] = 0;
+	else {
+		sprintf(prefix, "%s/", name);
+		len++;
+	}
+
+	// Entries in the same directory are adjacent as the entries are sorted.
+	const char *previous = NULL;
+	size_t previous_len = 0;
+	for (int ix = LowerBound(prefix); ix < n_archive_entries; ix++) {
+		const char *entry = archive_entries[ix].name;
+		if (strncmp(entry, prefix, len) != 0)
+			break;
+
+		const char *rest = entry + len;
+		const char *sep = strchr(rest, '/');
+		size_t rest_len = (sep == NULL) ? strlen(rest) : (size_t)(sep - rest);
+		if (previous != NULL && previous_len == rest_len && memcmp(previous, rest, rest_len) == 0)
+			continue; // another file in a sub-directory that has been listed
+
+		previous = rest;
+		previous_len = rest_len;
+		if (strlen(path) + rest_len + 2 > sizeof(child))
+			continue;
+
+		sprintf(child, "%s%c%.*s", path, PATHSEP, (int)rest_len, rest);
+		callback(child, data);
+	}
+}
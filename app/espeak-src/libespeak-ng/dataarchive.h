@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2013 Reece H. Dunn
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see: <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef ESPEAK_NG_DATAARCHIVE_H
+#define ESPEAK_NG_DATAARCHIVE_H
+
+#include <stdio.h>
+#include <sys/types.h>
+
+#include "espeak-ng/espeak_ng.h"       // for espeak_ng_STATUS
+
+#ifdef __cplusplus
+extern "C"
+{
+#endif
+
+// Reads the espeak-ng-data files in place from a zip archive whose entries
+// are all stored uncompressed. The archive is memory mapped from a region of
+// fd, which can be closed once this returns. Files under path_home are then
+// looked up in the archive before the file system, except for dictionaries
+// that have been imported into path_home.
+espeak_ng_STATUS OpenDataArchive(int fd, off_t offset, size_t length);
+void CloseDataArchive(void);
+
+// The length of the file in the archive, -EISDIR for a directory in the
+// archive, or -ENOENT if the path is not in the archive or is an imported
+// dictionary.
+int GetDataArchiveFileLength(const char *path);
+
+// Opens the file for reading from the archive, or from the file system if it
+// is not in the archive.
+FILE *OpenDataFile(const char *path, const char *mode);
+
+typedef void (*DATA_ARCHIVE_LIST_CALLBACK)(const char *path, void *data);
+
+// Calls callback with the path of each file and directory directly inside the
+// archive directory.
+void ListDataArchiveDirectory(const char *path, DATA_ARCHIVE_LIST_CALLBACK callback, void *data);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif
@@ -27,12 +27,15 @@
 #include <wctype.h>
 #include <wchar.h>
 #include <assert.h>
+#include <time.h>
+#include <sys/stat.h>
 
 #include <espeak-ng/espeak_ng.h>
 #include <espeak-ng/speak_lib.h>
 #include <espeak-ng/encoding.h>
 
 #include "common.h"                // for GetFileLength, strncpy0
+#include "dataarchive.h"           // for GetDataArchiveFileLength, OpenDataFile
 #include "dictionary.h"
 #include "numbers.h"                       // for LookupAccentedLetter, Look...
 #include "phoneme.h"                       // for PHONEME_TAB, phVOWEL, phon...
@@ -193,6 +196,107 @@ static void InitGroups(Translator *tr)
 	}
 }
 
+// Cache of the loaded dictionary files, most recently used first.
+//
+// Switching voices deletes the translator, and loading the new voice reads
+// its dictionary from disk. The unused dictionaries are kept in memory up to
+// dictionary_cache_max bytes, so switching back to a recent language does
+// not read the file again. The data is not modified after it is loaded, so
+// translators for the same dictionary share it.
+typedef struct DICTIONARY_CACHE_ENTRY {
+	struct DICTIONARY_CACHE_ENTRY *next;
+	char fname[sizeof(path_home)+20];
+	time_t mtime;
+	int size;
+	int refs; // number of translators using the data
+	char *data;
+} DICTIONARY_CACHE_ENTRY;
+
+static DICTIONARY_CACHE_ENTRY *dictionary_cache = NULL;
+static size_t dictionary_cache_bytes = 0;
+static size_t dictionary_cache_max = 0;
+
+static void TrimDictionaryCache(void)
+{
+	// remove the least recently used unreferenced dictionaries until the cache fits
+	while (dictionary_cache_bytes > dictionary_cache_max) {
+		DICTIONARY_CACHE_ENTRY **unused = NULL;
+		DICTIONARY_CACHE_ENTRY **link;
+		for (link = &dictionary_cache; *link != NULL; link = &(*link)->next) {
+			if ((*link)->refs == 0)
+				unused = link;
+		}
+		if (unused == NULL)
+			return;
+
+		DICTIONARY_CACHE_ENTRY *entry = *unused;
+		*unused = entry->next;
+		dictionary_cache_bytes -= entry->size;
+		free(entry->data);
+		free(entry);
+	}
+}
+
+static char *GetCachedDictionary(const char *fname, int size, time_t mtime)
+{
+	DICTIONARY_CACHE_ENTRY **link;
+	for (link = &dictionary_cache; *link != NULL; link = &(*link)->next) {
+		DICTIONARY_CACHE_ENTRY *entry = *link;
+		if ((strcmp(entry->fname, fname) == 0) && (entry->size == size) && (entry->mtime == mtime)) {
+			// move to the front of the list
+			*link = entry->next;
+			entry->next = dictionary_cache;
+			dictionary_cache = entry;
+			entry->refs++;
+			return entry->data;
+		}
+	}
+	return NULL;
+}
+
+static void AddCachedDictionary(const char *fname, char *data, int size, time_t mtime)
+{
+	DICTIONARY_CACHE_ENTRY *entry = malloc(sizeof(DICTIONARY_CACHE_ENTRY));
+	if (entry == NULL)
+		return; // the data is freed by ReleaseDictionary when it is not found in the cache
+
+	strncpy0(entry->fname, fname, sizeof(entry->fname));
+	entry->mtime = mtime;
+	entry->size = size;
+	entry->refs = 1;
+	entry->data = data;
+	entry->next = dictionary_cache;
+	dictionary_cache = entry;
+	dictionary_cache_bytes += size;
+	TrimDictionaryCache();
+}
+
+// Release the dictionary data used by a translator.
+void ReleaseDictionary(char *data)
+{
+	DICTIONARY_CACHE_ENTRY *entry;
+
+	if (data == NULL)
+		return;
+
+	for (entry = dictionary_cache; entry != NULL; entry = entry->next) {
+		if (entry->data == data) {
+			entry->refs--;
+			TrimDictionaryCache();
+			return;
+		}
+	}
+	free(data);
+}
+
+// Set the memory used to keep dictionaries that are not in use loaded.
+// A size of 0 frees each dictionary when it is no longer used.
+void SetDictionaryCacheSize(size_t max_bytes)
+{
+	dictionary_cache_max = max_bytes;
+	TrimDictionaryCache();
+}
+
 int LoadDictionary(Translator *tr, const char *name, int no_error)
 {
 	int hash;
@@ -202,6 +306,7 @@ int LoadDictionary(Translator *tr, const char *name, int no_error)
 	FILE *f;
 	int size;
 	char fname[sizeof(path_home)+20];
+	struct stat statbuf;
 
 	if (dictionary_name != name)
 		strncpy(dictionary_name, name, 40); // currently loaded dictionary name
@@ -212,28 +317,40 @@ int LoadDictionary(Translator *tr, const char *name, int no_error)
 	// bytes 0-3:  offset to rules data
 	// bytes 4-7:  number of hash table entries
 	sprintf(fname, "%s%c%s_dict", path_home, PATHSEP, name);
-	size = GetFileLength(fname);
+	if ((size = GetDataArchiveFileLength(fname)) >= 0)
+		statbuf.st_mtime = 0; // the archive does not change while it is open
+	else if ((stat(fname, &statbuf) == 0) && !S_ISDIR(statbuf.st_mode))
+		size = statbuf.st_size;
+	else
+		size = 0;
 
 	if (tr->data_dictlist != NULL) {
-		free(tr->data_dictlist);
+		ReleaseDictionary(tr->data_dictlist);
 		tr->data_dictlist = NULL;
 	}
 
-	f = fopen(fname, "rb");
-	if ((f == NULL) || (size <= 0)) {
-		if (no_error == 0)
-			fprintf(stderr, "Can't read dictionary file: '%s'\n", fname);
-		if (f != NULL)
-			fclose(f);
-		return 1;
-	}
+	if ((size > 0) && ((tr->data_dictlist = GetCachedDictionary(fname, size, statbuf.st_mtime)) != NULL)) {
+		// already loaded
+	} else {
+		f = OpenDataFile(fname, "rb");
+		if ((f == NULL) || (size <= 0)) {
+			if (no_error == 0)
+				fprintf(stderr, "Can't read dictionary file: '%s'\n", fname);
+			if (f != NULL)
+				fclose(f);
+			return 1;
+		}
 
-	if ((tr->data_dictlist = malloc(size)) == NULL) {
+		if ((tr->data_dictlist = malloc(size)) == NULL) {
+			fclose(f);
+			return 3;
+		}
+		length = fread(tr->data_dictlist, 1, size, f);
 		fclose(f);
-		return 3;
+		if (length == size)
+			AddCachedDictionary(fname, tr->data_dictlist, size, statbuf.st_mtime);
+		size = length;
 	}
-	size = fread(tr->data_dictlist, 1, size, f);
-	fclose(f);
 
 	pw = (int *)(tr->data_dictlist);
 	length = Reverse4Bytes(pw[1]);
@@ -32,6 +32,7 @@
 #include <espeak-ng/encoding.h>
 
 #include "langopts.h"
+#include "dataarchive.h"               // for OpenDataFile
 #include "mnemonics.h"                // for MNEM_TAB
 #include "translate.h"                // for Translator
 #include "soundicon.h"                // for soundicon_tab, n_soundicon_tab
@@ -187,7 +188,7 @@ void LoadConfig(void) {
 	char string[200];
 
 	sprintf(buf, "%s%c%s", path_home, PATHSEP, "config");
-	if ((f = fopen(buf, "r")) == NULL)
+	if ((f = OpenDataFile(buf, "r")) == NULL)
 		return;
 
 	while (fgets(buf, sizeof(buf), f) != NULL) {
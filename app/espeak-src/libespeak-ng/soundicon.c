@@ -37,6 +37,7 @@
 
 #include "soundicon.h" 
 #include "common.h"                // for GetFileLength
+#include "dataarchive.h"           // for OpenDataFile
 #include "error.h"                // for create_file_error_context
 #include "speech.h"                   // for path_home, PATHSEP
 #include "synthesize.h"                   // for samplerate
@@ -70,7 +71,7 @@ static espeak_ng_STATUS LoadSoundFile(const char *fname, int index, espeak_ng_ER
 	fname_temp[0] = 0;
 
 	f = NULL;
-	if ((f = fopen(fname, "rb")) != NULL) {
+	if ((f = OpenDataFile(fname, "rb")) != NULL) {
 		int ix;
 		int header[3];
 
@@ -104,7 +105,7 @@ static espeak_ng_STATUS LoadSoundFile(const char *fname, int index, espeak_ng_ER
 	}
 
 	if (f == NULL) {
-		f = fopen(fname, "rb");
+		f = OpenDataFile(fname, "rb");
 		if (f == NULL)
 			return create_file_error_context(context, errno, fname);
 	}
@@ -33,6 +33,7 @@
 
 #include "synthdata.h"
 #include "common.h"                    // for GetFileLength
+#include "dataarchive.h"               // for OpenDataFile
 #include "error.h"                    // for create_file_error_context, crea...
 #include "phoneme.h"                  // for PHONEME_TAB, PHONEME_TAB_LIST
 #include "speech.h"                   // for path_home, PATHSEP
@@ -76,7 +77,7 @@ static espeak_ng_STATUS ReadPhFile(void **ptr, const char *fname, int *size, esp
 	if (length < 0) // length == -errno
 		return create_file_error_context(context, -length, buf);
 
-	if ((f_in = fopen(buf, "rb")) == NULL)
+	if ((f_in = OpenDataFile(buf, "rb")) == NULL)
 		return create_file_error_context(context, errno, buf);
 
 	if (*ptr != NULL) {
@@ -116,8 +116,7 @@ void DeleteTranslator(Translator *tr)
 {
 	if (!tr) return;
 
-	if (tr->data_dictlist != NULL)
-		free(tr->data_dictlist);
+	ReleaseDictionary(tr->data_dictlist);
 	free(tr);
 }
 
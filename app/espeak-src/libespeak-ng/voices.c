@@ -41,6 +41,7 @@
 
 #include "voice.h"                    // for voice_t, DoVoiceChange, N_PEAKS
 #include "common.h"                    // for GetFileLength, strncpy0
+#include "dataarchive.h"               // for OpenDataFile, ListDataArchiveDirectory
 #include "dictionary.h"               // for LoadDictionary
 #include "langopts.h"                 // for LoadLanguageOptions
 #include "mnemonics.h"               // for LookupMnemName, MNEM_TAB
@@ -471,7 +472,7 @@ voice_t *LoadVoice(const char *vname, int control)
 		}
 	}
 
-	f_voice = fopen(buf, "r");
+	f_voice = OpenDataFile(buf, "r");
 
         if (!(control & 8)/*compiling phonemes*/)
             language_type = ESPEAKNG_DEFAULT_VOICE; // default
@@ -1199,6 +1200,20 @@ char const *SelectVoice(espeak_VOICE *voice_select, int *found)
 	return vp->identifier;
 }
 
+typedef struct {
+	int len_path_voices;
+	int is_language_file;
+} VOICES_LIST_CONTEXT;
+
+static void AddArchiveFileToVoicesList(const char *fname, void *data)
+{
+	VOICES_LIST_CONTEXT *context = (VOICES_LIST_CONTEXT *)data;
+
+	if (n_voices_list >= (N_VOICES_LIST-2))
+		return; // voices list is full
+	AddToVoicesList(fname, context->len_path_voices, context->is_language_file);
+}
+
 static void GetVoices(const char *path, int len_path_voices, int is_language_file)
 {
 	char fname[sizeof(path_home)+100];
@@ -1230,6 +1245,9 @@ static void GetVoices(const char *path, int len_path_voices, int is_language_fil
 #else
 	DIR *dir;
 	struct dirent *ent;
+	VOICES_LIST_CONTEXT context = { len_path_voices, is_language_file };
+
+	ListDataArchiveDirectory(path, AddArchiveFileToVoicesList, &context);
 
 	if ((dir = opendir((char *)path)) == NULL) // note: (char *) is needed for WINCE
 		return;
@@ -1244,6 +1262,8 @@ static void GetVoices(const char *path, int len_path_voices, int is_language_fil
 			continue;
 
 			 sprintf(fname, "%s%c%s", path, PATHSEP, ent->d_name);
+			if (GetDataArchiveFileLength(fname) != -ENOENT)
+				continue; // listed from the data archive
 			if (AddToVoicesList(fname, len_path_voices, is_language_file) != 0) {
 				continue;
 			}
@@ -1434,7 +1454,7 @@ static int AddToVoicesList(const char *fname, int len_path_voices, int is_langua
 	} else if (ftype > 0) {
 		// a regular file, add it to the voices list
 		FILE *f_voice;
-		if ((f_voice = fopen(fname, "r")) == NULL)
+		if ((f_voice = OpenDataFile(fname, "r")) == NULL)
 			return 1;
 
 		// pass voice file name within the voices directory
@@ -27,12 +27,49 @@
 #include <stdlib.h>
 #include <stdbool.h>
 #include <string.h>
+#include <pthread.h>
+#include <stdatomic.h>
 #include <jni.h>
 
 #include <espeak-ng/speak_lib.h>
+#include <dataarchive.h>
+#include <dictionary.h>
 #include <Log.h>
 
-#define BUFFER_SIZE_IN_MILLISECONDS 300
+/* The size of the buffer eSpeak renders audio into, and therefore the
+ * smallest chunk of audio that can be delivered to Java. This is the minimum
+ * eSpeak supports; larger chunks are built up by SynthCallback according to
+ * the chunk schedule.
+ */
+#define BUFFER_SIZE_IN_MILLISECONDS 60
+
+#define DEFAULT_CHUNK_SIZE_IN_MILLISECONDS 300
+
+/* The nativeApply mask bits, matching the APPLY_* constants in SpeechSynthesis. */
+#define APPLY_VOICE_BY_NAME          0x01
+#define APPLY_VOICE_BY_PROPERTIES    0x02
+#define APPLY_RATE                   0x04
+#define APPLY_PITCH                  0x08
+#define APPLY_PITCH_RANGE            0x10
+#define APPLY_VOLUME                 0x20
+#define APPLY_PUNCTUATION            0x40
+#define APPLY_PUNCTUATION_CHARACTERS 0x80
+
+/* The nativeApply parameter array layout. */
+enum apply_param {
+    APPLY_PARAM_MASK,
+    APPLY_PARAM_GENDER,
+    APPLY_PARAM_AGE,
+    APPLY_PARAM_RATE,
+    APPLY_PARAM_PITCH,
+    APPLY_PARAM_PITCH_RANGE,
+    APPLY_PARAM_VOLUME,
+    APPLY_PARAM_PUNCTUATION,
+    APPLY_PARAM_COUNT
+};
+
+/* The number of ints used to store each event in the event buffer. */
+#define EVENT_RECORD_SIZE 4
 
 /* These are helpers for converting a jstring to wchar_t*.
  *
@@ -95,25 +132,223 @@ enum synthesis_result {
 };
 
 static JavaVM *jvm = NULL;
+static jclass CLASS_SpeechSynthesis = NULL;
+static jclass CLASS_String = NULL;
 jmethodID METHOD_nativeSynthCallback;
+jmethodID METHOD_nativeSynthBufferCallback;
+
+/* The SpeechSynthesis object that created the engine. This is used when the
+ * event does not carry the object in user_data.
+ */
+static jobject engine_object = NULL;
+
+/* The direct ByteBuffer registered by SpeechSynthesis.nativeSetAudioBuffer.
+ *
+ * When set, SynthCallback copies the audio into this buffer and only passes
+ * the offset and length of the samples to Java, so the steady-state audio
+ * path does not allocate a new Java array for every chunk.
+ */
+static jobject audio_buffer = NULL;
+static short *audio_buffer_data = NULL;
+static int audio_buffer_samples = 0;
+
+/* The chunk schedule used to deliver audio to Java.
+ *
+ * The first chunk of an utterance is kept small so that audio starts
+ * quickly, while the remaining chunks are larger to reduce the number of
+ * JNI calls. The chunks are built up in the audio buffer from the smaller
+ * buffers rendered by eSpeak.
+ */
+static int sample_rate = 0;
+static int first_chunk_ms = DEFAULT_CHUNK_SIZE_IN_MILLISECONDS;
+static int chunk_ms = DEFAULT_CHUNK_SIZE_IN_MILLISECONDS;
+static int audio_buffer_fill = 0;
+static int chunks_delivered = 0;
+
+/* The int[] registered by SpeechSynthesis.nativeSetEventBuffer.
+ *
+ * The word, sentence, mark and phoneme events for the audio in the audio
+ * buffer are packed into event_data as (type, text position, length, sample)
+ * records. They are copied to the Java array just before the audio is
+ * delivered, so the events are sent in the same call as the audio.
+ */
+static jintArray event_buffer = NULL;
+static jint *event_data = NULL;
+static int event_buffer_events = 0;
+static int event_count = 0;
+
+static int getChunkTarget() {
+    int ms = (chunks_delivered == 0) ? first_chunk_ms : chunk_ms;
+    int samples = (sample_rate * ms) / 1000;
+    if (samples < 1) samples = 1;
+    if (samples > audio_buffer_samples) samples = audio_buffer_samples;
+    return samples;
+}
+
+/* Abort tokens for stopping synthesis.
+ *
+ * Each call to nativeSynthesize takes a new generation number. nativeStop
+ * marks the current generation as aborted, and SynthCallback checks this
+ * before doing any JNI work. A stop request therefore only affects the
+ * synthesis that was running when it was made, and never the next one.
+ */
+//@{
+
+static atomic_uint synth_generation = 0;
+static atomic_uint abort_generation = 0;
+static unsigned int active_generation = 0;
+
+static bool isSynthesisAborted() {
+    return atomic_load_explicit(&abort_generation, memory_order_acquire) == active_generation;
+}
+
+//@}
+
+/* Thread attachment for the native synthesis callbacks.
+ *
+ * The JNIEnv is cached per thread, so SynthCallback does not make a JNI call
+ * to look it up for every audio chunk. Threads that are attached here are
+ * detached by the pthread key destructor when they exit; threads that were
+ * already attached by the VM are left for the VM to detach.
+ */
+//@{
+
+static __thread JNIEnv *thread_env = NULL;
+static pthread_key_t thread_detach_key;
+static pthread_once_t thread_detach_key_once = PTHREAD_ONCE_INIT;
+
+static void detachThread(void *value) {
+    if (jvm) (*jvm)->DetachCurrentThread(jvm);
+    thread_env = NULL;
+}
+
+static void createThreadDetachKey() {
+    pthread_key_create(&thread_detach_key, detachThread);
+}
 
 static JNIEnv *getJniEnv() {
+    if (thread_env) return thread_env;
+
     JNIEnv *env = NULL;
-    (*jvm)->AttachCurrentThread(jvm, &env, NULL);
+    switch ((*jvm)->GetEnv(jvm, (void **) &env, JNI_VERSION_1_6)) {
+        case JNI_OK:
+            break;
+        case JNI_EDETACHED:
+            if ((*jvm)->AttachCurrentThread(jvm, &env, NULL) != JNI_OK) {
+                LOGE("Failed to attach the synthesis thread to the VM.");
+                return NULL;
+            }
+            pthread_once(&thread_detach_key_once, createThreadDetachKey);
+            pthread_setspecific(thread_detach_key, env);
+            break;
+        default:
+            LOGE("Failed to get the environment using GetEnv()");
+            return NULL;
+    }
+
+    thread_env = env;
     return env;
 }
 
+//@}
+
+/* Sends the audio and events collected in the audio buffer to Java. */
+static bool flushAudioBuffer(JNIEnv *env, jobject object) {
+    if (audio_buffer_fill == 0 && event_count == 0) return true;
+
+    if (event_count > 0) {
+        (*env)->SetIntArrayRegion(env, event_buffer, 0, event_count * EVENT_RECORD_SIZE, event_data);
+    }
+
+    jboolean result = (*env)->CallBooleanMethod(env, object, METHOD_nativeSynthBufferCallback, 0, audio_buffer_fill * 2, event_count);
+    if (audio_buffer_fill > 0) ++chunks_delivered;
+    audio_buffer_fill = 0;
+    event_count = 0;
+    return result ? true : false;
+}
+
+/* Adds the events that are reported to Java to the event buffer. */
+static bool addEvents(JNIEnv *env, jobject object, const espeak_EVENT *events) {
+    if (event_data == NULL) return true;
+
+    for (const espeak_EVENT *event = events; event->type != espeakEVENT_LIST_TERMINATED; ++event) {
+        switch (event->type) {
+            case espeakEVENT_WORD:
+            case espeakEVENT_SENTENCE:
+            case espeakEVENT_MARK:
+            case espeakEVENT_PHONEME:
+                break;
+            default:
+                continue;
+        }
+
+        if (event_count == event_buffer_events && !flushAudioBuffer(env, object)) {
+            return false;
+        }
+
+        jint *record = event_data + (event_count++ * EVENT_RECORD_SIZE);
+        record[0] = event->type;
+        record[1] = event->text_position;
+        record[2] = event->length;
+        record[3] = event->sample;
+    }
+    return true;
+}
+
 /* Callback from espeak.  Should call back to the TTS API */
 static int SynthCallback(short *audioData, int numSamples, espeak_EVENT *events) {
+    if (isSynthesisAborted()) {
+        LOGV("SynthCallback: synthesis stopped.");
+        return SYNTH_ABORT;
+    }
+
     JNIEnv *env = getJniEnv();
-    jobject object = (jobject)events->user_data;
+    jobject object = events->user_data ? (jobject)events->user_data : engine_object;
+    if (env == NULL || object == NULL) {
+        return SYNTH_ABORT;
+    }
 
     LOGV("SynthCallback called: numSamples=%d", numSamples);
 
-    if (numSamples < 1) {
+    if (audio_buffer_data && !addEvents(env, object, events)) {
+        LOGV("SynthCallback: synthesis cancelled.");
+        return SYNTH_ABORT;
+    }
+
+    if (audio_buffer_data && audioData != NULL && numSamples < 1) {
+        // An empty buffer in the middle of the utterance (e.g. at a clause
+        // boundary); the end of the audio is signalled by a NULL buffer.
+        return SYNTH_CONTINUE;
+    } else if (numSamples < 1) {
         LOGV("SynthCallback: no samples generated, stopping.");
-        (*env)->CallVoidMethod(env, object, METHOD_nativeSynthCallback, NULL);
+        if (audio_buffer_data) {
+            flushAudioBuffer(env, object);
+        } else {
+            (*env)->CallVoidMethod(env, object, METHOD_nativeSynthCallback, NULL);
+        }
         return SYNTH_ABORT;
+    } else if (audio_buffer_data) {
+        LOGV("SynthCallback: adding %d samples to the audio buffer.", numSamples);
+        int offset = 0;
+        while (offset < numSamples) {
+            if (isSynthesisAborted()) {
+                return SYNTH_ABORT;
+            }
+
+            int target = getChunkTarget();
+            int count = numSamples - offset;
+            if (count > target - audio_buffer_fill) count = target - audio_buffer_fill;
+
+            memcpy(audio_buffer_data + audio_buffer_fill, audioData + offset, count * sizeof(short));
+            audio_buffer_fill += count;
+            offset += count;
+
+            if (audio_buffer_fill >= target && !flushAudioBuffer(env, object)) {
+                LOGV("SynthCallback: synthesis cancelled.");
+                return SYNTH_ABORT;
+            }
+        }
+        return SYNTH_CONTINUE;
     } else {
         LOGV("SynthCallback: sending %d samples to Java.", numSamples);
         jbyteArray arrayAudioData = (*env)->NewByteArray(env, numSamples * 2);
@@ -138,14 +373,47 @@ JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
         return -1;
     }
 
+    jclass string = (*env)->FindClass(env, "java/lang/String");
+    CLASS_String = (jclass) (*env)->NewGlobalRef(env, string);
+    (*env)->DeleteLocalRef(env, string);
+
     return JNI_VERSION_1_6;
 }
 
+JNIEXPORT void
+JNICALL JNI_OnUnload(JavaVM *vm, void *reserved) {
+    JNIEnv *env;
+
+    if ((*vm)->GetEnv(vm, (void **) &env, JNI_VERSION_1_6) != JNI_OK) {
+        return;
+    }
+
+    if (audio_buffer) (*env)->DeleteGlobalRef(env, audio_buffer);
+    if (event_buffer) (*env)->DeleteGlobalRef(env, event_buffer);
+    free(event_data);
+    if (engine_object) (*env)->DeleteGlobalRef(env, engine_object);
+    if (CLASS_SpeechSynthesis) (*env)->DeleteGlobalRef(env, CLASS_SpeechSynthesis);
+    if (CLASS_String) (*env)->DeleteGlobalRef(env, CLASS_String);
+
+    audio_buffer = NULL;
+    audio_buffer_data = NULL;
+    event_buffer = NULL;
+    event_data = NULL;
+    engine_object = NULL;
+    CLASS_SpeechSynthesis = NULL;
+    CLASS_String = NULL;
+    jvm = NULL;
+}
+
 JNIEXPORT jboolean
 JNICALL Java_com_reecedunn_espeak_SpeechSynthesis_nativeClassInit(
         JNIEnv* env, jclass clazz) {
     if (DEBUG) LOGV("%s", __FUNCTION__);
+    if (CLASS_SpeechSynthesis == NULL) {
+        CLASS_SpeechSynthesis = (jclass) (*env)->NewGlobalRef(env, clazz);
+    }
     METHOD_nativeSynthCallback = (*env)->GetMethodID(env, clazz, "nativeSynthCallback", "([B)V");
+    METHOD_nativeSynthBufferCallback = (*env)->GetMethodID(env, clazz, "nativeSynthCallback", "(III)Z");
 
     return JNI_TRUE;
 }
@@ -158,6 +426,9 @@ JNICALL Java_com_reecedunn_espeak_SpeechSynthesis_nativeCreate(
     const char *c_path = path ? (*env)->GetStringUTFChars(env, path, NULL) : NULL;
     if (DEBUG) LOGV("Initializing eSpeak with data path: %s", c_path ? c_path : "(null)");
 
+    if (engine_object) (*env)->DeleteGlobalRef(env, engine_object);
+    engine_object = (*env)->NewGlobalRef(env, object);
+
     // 1) Initialize in RETRIEVAL mode so audio comes to our callback.
     //    Also set DONT_EXIT so a failure won’t kill the process.
     int sampleRate = espeak_Initialize(
@@ -184,6 +455,7 @@ JNICALL Java_com_reecedunn_espeak_SpeechSynthesis_nativeCreate(
     espeak_SetVoiceByName("en");
 
     if (DEBUG) LOGV("eSpeak initialized at %d Hz (retrieval/sync path).", sampleRate);
+    sample_rate = sampleRate;
 
     if (c_path) (*env)->ReleaseStringUTFChars(env, path, c_path);
     return sampleRate; // 0 means failure
@@ -191,6 +463,109 @@ JNICALL Java_com_reecedunn_espeak_SpeechSynthesis_nativeCreate(
 
 
 
+JNIEXPORT void
+JNICALL Java_com_reecedunn_espeak_SpeechSynthesis_nativeDestroy(
+        JNIEnv *env, jobject object) {
+    if (DEBUG) LOGV("%s", __FUNCTION__);
+
+    // NOTE: The eSpeak engine itself is process-global and may still be used
+    // by another SpeechSynthesis object, so only the references held for
+    // this object are released here.
+    if (engine_object && (*env)->IsSameObject(env, engine_object, object)) {
+        (*env)->DeleteGlobalRef(env, engine_object);
+        engine_object = NULL;
+    }
+}
+
+JNIEXPORT jboolean
+JNICALL Java_com_reecedunn_espeak_SpeechSynthesis_nativeSetAudioBuffer(
+        JNIEnv *env, jobject object, jobject buffer) {
+    if (DEBUG) LOGV("%s", __FUNCTION__);
+
+    if (audio_buffer) {
+        (*env)->DeleteGlobalRef(env, audio_buffer);
+        audio_buffer = NULL;
+        audio_buffer_data = NULL;
+        audio_buffer_samples = 0;
+    }
+
+    if (buffer == NULL) {
+        return JNI_TRUE;
+    }
+
+    short *data = (short *)(*env)->GetDirectBufferAddress(env, buffer);
+    jlong capacity = (*env)->GetDirectBufferCapacity(env, buffer);
+    if (data == NULL || capacity < (jlong)sizeof(short)) {
+        LOGE("nativeSetAudioBuffer: the audio buffer is not a direct buffer.");
+        return JNI_FALSE;
+    }
+
+    audio_buffer = (*env)->NewGlobalRef(env, buffer);
+    audio_buffer_data = data;
+    audio_buffer_samples = (int)(capacity / sizeof(short));
+    return JNI_TRUE;
+}
+
+JNIEXPORT jboolean
+JNICALL Java_com_reecedunn_espeak_SpeechSynthesis_nativeSetEventBuffer(
+        JNIEnv *env, jobject object, jintArray events) {
+    if (DEBUG) LOGV("%s", __FUNCTION__);
+
+    if (event_buffer) {
+        (*env)->DeleteGlobalRef(env, event_buffer);
+        free(event_data);
+        event_buffer = NULL;
+        event_data = NULL;
+        event_buffer_events = 0;
+    }
+
+    if (events == NULL) {
+        return JNI_TRUE;
+    }
+
+    int count = (*env)->GetArrayLength(env, events) / EVENT_RECORD_SIZE;
+    if (count < 1) {
+        LOGE("nativeSetEventBuffer: the event buffer is too small.");
+        return JNI_FALSE;
+    }
+
+    event_data = (jint *)malloc(count * EVENT_RECORD_SIZE * sizeof(jint));
+    if (event_data == NULL) {
+        return JNI_FALSE;
+    }
+
+    event_buffer = (jintArray)(*env)->NewGlobalRef(env, events);
+    event_buffer_events = count;
+    return JNI_TRUE;
+}
+
+JNIEXPORT void
+JNICALL Java_com_reecedunn_espeak_SpeechSynthesis_nativeSetChunkSchedule(
+        JNIEnv *env, jobject object, jint firstChunkMs, jint chunkMs) {
+    if (DEBUG) LOGV("%s(first=%d, chunk=%d)", __FUNCTION__, firstChunkMs, chunkMs);
+    first_chunk_ms = firstChunkMs > 0 ? firstChunkMs : DEFAULT_CHUNK_SIZE_IN_MILLISECONDS;
+    chunk_ms = chunkMs > 0 ? chunkMs : DEFAULT_CHUNK_SIZE_IN_MILLISECONDS;
+}
+
+JNIEXPORT void
+JNICALL Java_com_reecedunn_espeak_SpeechSynthesis_nativeSetDictionaryCacheSize(
+        JNIEnv *env, jclass clazz, jint bytes) {
+    if (DEBUG) LOGV("%s(bytes=%d)", __FUNCTION__, bytes);
+    SetDictionaryCacheSize(bytes > 0 ? (size_t)bytes : 0);
+}
+
+JNIEXPORT jboolean
+JNICALL Java_com_reecedunn_espeak_SpeechSynthesis_nativeOpenDataArchive(
+        JNIEnv *env, jclass clazz, jint fd, jlong offset, jlong length) {
+    if (DEBUG) LOGV("%s(fd=%d, offset=%lld, length=%lld)", __FUNCTION__, fd, (long long)offset, (long long)length);
+    espeak_ng_STATUS status = OpenDataArchive(fd, (off_t)offset, (size_t)length);
+    if (status != ENS_OK) {
+        LOGE("Unable to open the voice data archive (status=0x%x)", status);
+        return JNI_FALSE;
+    }
+    return JNI_TRUE;
+}
+
 JNIEXPORT jobject
 JNICALL Java_com_reecedunn_espeak_SpeechSynthesis_nativeGetVersion(
         JNIEnv *env, jclass clazz) {
@@ -212,7 +587,7 @@ JNICALL Java_com_reecedunn_espeak_SpeechSynthesis_nativeGetAvailableVoices(
 
     // Next, create a Java String array.
     jobjectArray voicesArray = (jobjectArray) (*env)->NewObjectArray(
-            env, count * 4, (*env)->FindClass(env, "java/lang/String"), NULL);
+            env, count * 4, CLASS_String, NULL);
 
     const espeak_VOICE *v;
     char gender_buf[12];
@@ -331,40 +706,144 @@ JNICALL Java_com_reecedunn_espeak_SpeechSynthesis_nativeSetPunctuationCharacters
     return JNI_FALSE;
 }
 
+static bool applyParameter(espeak_PARAMETER parameter, int value) {
+    if (espeak_SetParameter(parameter, value, 0) != EE_OK) {
+        LOGE("espeak_SetParameter(%d, %d) failed.", parameter, value);
+        return false;
+    }
+    return true;
+}
+
 JNIEXPORT jboolean
-JNICALL Java_com_reecedunn_espeak_SpeechSynthesis_nativeSynthesize(
-        JNIEnv *env, jobject object, jstring text, jboolean isSsml) {
-    if (DEBUG) LOGV("%s", __FUNCTION__);
-    const char *c_text = text ? (*env)->GetStringUTFChars(env, text, NULL) : NULL;
+JNICALL Java_com_reecedunn_espeak_SpeechSynthesis_nativeApply(
+        JNIEnv *env, jobject object, jintArray params, jstring voice, jstring characters) {
+    jint p[APPLY_PARAM_COUNT];
+    (*env)->GetIntArrayRegion(env, params, 0, APPLY_PARAM_COUNT, p);
+
+    const int mask = p[APPLY_PARAM_MASK];
+    if (DEBUG) LOGV("%s(mask=0x%02x)", __FUNCTION__, mask);
+
+    bool ok = true;
+    if (mask & (APPLY_VOICE_BY_NAME | APPLY_VOICE_BY_PROPERTIES)) {
+        const char *c_voice = voice ? (*env)->GetStringUTFChars(env, voice, NULL) : NULL;
+        espeak_ERROR result;
+        if (mask & APPLY_VOICE_BY_NAME) {
+            result = espeak_SetVoiceByName(c_voice);
+        } else {
+            espeak_VOICE voice_select;
+            memset(&voice_select, 0, sizeof(espeak_VOICE));
+            voice_select.languages = c_voice;
+            voice_select.gender = p[APPLY_PARAM_GENDER];
+            voice_select.age = p[APPLY_PARAM_AGE];
+            result = espeak_SetVoiceByProperties(&voice_select);
+        }
+        if (result != EE_OK) {
+            LOGE("nativeApply: failed to set the voice to %s.", c_voice);
+            ok = false;
+        }
+        if (c_voice) (*env)->ReleaseStringUTFChars(env, voice, c_voice);
+    }
+
+    if (mask & APPLY_RATE)        ok &= applyParameter(espeakRATE, p[APPLY_PARAM_RATE]);
+    if (mask & APPLY_PITCH)       ok &= applyParameter(espeakPITCH, p[APPLY_PARAM_PITCH]);
+    if (mask & APPLY_PITCH_RANGE) ok &= applyParameter(espeakRANGE, p[APPLY_PARAM_PITCH_RANGE]);
+    if (mask & APPLY_VOLUME)      ok &= applyParameter(espeakVOLUME, p[APPLY_PARAM_VOLUME]);
+    if (mask & APPLY_PUNCTUATION) ok &= applyParameter(espeakPUNCTUATION, p[APPLY_PARAM_PUNCTUATION]);
+
+    if (mask & APPLY_PUNCTUATION_CHARACTERS) {
+        wchar_t *list = unicode_string(env, characters);
+        if (espeak_SetPunctuationList(list) != EE_OK) {
+            LOGE("nativeApply: failed to set the punctuation characters.");
+            ok = false;
+        }
+        free(list);
+    }
+
+    return ok ? JNI_TRUE : JNI_FALSE;
+}
+
+/* Synthesizes NUL-terminated UTF-8 text.
+ *
+ * A continuation keeps the generation of the previous call, so a stop
+ * request made while an earlier piece of the text was being synthesized
+ * also stops the later pieces.
+ */
+static espeak_ERROR synthesize(jobject object, const char *text, unsigned int flags, bool isContinuation) {
     unsigned int unique_identifier;
 
+    if (!isContinuation) {
+        active_generation = atomic_fetch_add(&synth_generation, 1) + 1;
+        chunks_delivered = 0;
+    }
+    audio_buffer_fill = 0;
+    event_count = 0;
+
     espeak_SetSynthCallback(SynthCallback);
     LOGV("Calling espeak_Synth for text...");
-    const espeak_ERROR result = espeak_Synth(c_text, strlen(c_text), 0,  // position
+    const espeak_ERROR result = espeak_Synth(text, strlen(text) + 1, 0,  // position
                                              POS_CHARACTER, 0, // end position (0 means no end position)
-                                             isSsml ? espeakCHARS_UTF8 | espeakSSML // UTF-8 encoded SSML
-                                                    : espeakCHARS_UTF8,             // UTF-8 encoded text
-                                             &unique_identifier, object);
+                                             flags, &unique_identifier, object);
     LOGV("espeak_Synth finished with code: %d", result);
     espeak_Synchronize();
 
-    if (c_text) (*env)->ReleaseStringUTFChars(env, text, c_text);
-
     switch (result) {
-        case EE_OK:             return JNI_TRUE;
+        case EE_OK:             break;
         case EE_INTERNAL_ERROR: LOGE("espeak_Synth: internal error."); break;
         case EE_BUFFER_FULL:    LOGE("espeak_Synth: buffer full."); break;
         case EE_NOT_FOUND:      LOGE("espeak_Synth: not found."); break;
     }
+    return result;
+}
+
+JNIEXPORT jboolean
+JNICALL Java_com_reecedunn_espeak_SpeechSynthesis_nativeSynthesize(
+        JNIEnv *env, jobject object, jstring text, jboolean isSsml) {
+    if (DEBUG) LOGV("%s", __FUNCTION__);
+    const char *c_text = text ? (*env)->GetStringUTFChars(env, text, NULL) : NULL;
+
+    synthesize(object, c_text,
+               isSsml ? espeakCHARS_UTF8 | espeakSSML // UTF-8 encoded SSML
+                      : espeakCHARS_UTF8,             // UTF-8 encoded text
+               false);
 
+    if (c_text) (*env)->ReleaseStringUTFChars(env, text, c_text);
     return JNI_TRUE;
 }
 
+JNIEXPORT jboolean
+JNICALL Java_com_reecedunn_espeak_SpeechSynthesis_nativeSynthesizeBuffer(
+        JNIEnv *env, jobject object, jobject text, jint length, jboolean isContinuation, jboolean hasMore) {
+    if (DEBUG) LOGV("%s(length=%d, isContinuation=%d)", __FUNCTION__, length, isContinuation);
+
+    if (isContinuation && isSynthesisAborted()) {
+        return JNI_FALSE;
+    }
+
+    const char *c_text = (const char *)(*env)->GetDirectBufferAddress(env, text);
+    if (c_text == NULL || length < 0 || (*env)->GetDirectBufferCapacity(env, text) <= length || c_text[length] != '\0') {
+        LOGE("nativeSynthesizeBuffer: the text must be a NUL-terminated direct buffer.");
+        return JNI_FALSE;
+    }
+
+    // Keep the pause at the end of each piece, so the pieces are spoken in
+    // the same way as the whole text.
+    const unsigned int flags = espeakCHARS_UTF8 | (hasMore ? espeakENDPAUSE : 0);
+    if (synthesize(object, c_text, flags, isContinuation) != EE_OK) {
+        return JNI_FALSE;
+    }
+    return isSynthesisAborted() ? JNI_FALSE : JNI_TRUE;
+}
+
 JNIEXPORT jboolean
 JNICALL Java_com_reecedunn_espeak_SpeechSynthesis_nativeStop(
         JNIEnv *env, jobject object) {
     if (DEBUG) LOGV("%s", __FUNCTION__);
-    espeak_Cancel();
+
+    // NOTE: espeak_Cancel does not interrupt espeak_Synth when eSpeak is
+    // built without USE_ASYNC, and it resets the engine parameters while
+    // the synthesis thread may be using them. The synthesis thread stops at
+    // the next SynthCallback instead.
+    atomic_store_explicit(&abort_generation, atomic_load(&synth_generation), memory_order_release);
 
     return JNI_TRUE;
 }
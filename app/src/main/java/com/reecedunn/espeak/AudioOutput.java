@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2013 Reece H. Dunn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.reecedunn.espeak;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays synthesized audio on a dedicated playback thread.
+ *
+ * The synthesis thread copies audio into a lock-free ring buffer, and the
+ * playback thread drains it into the AudioTrack with non-blocking writes, so
+ * synthesis is never stalled by a full AudioTrack buffer.
+ */
+public class AudioOutput {
+    private static final String TAG = AudioOutput.class.getSimpleName();
+
+    /** The amount of audio that can be queued ahead of the AudioTrack. */
+    private static final int RING_BUFFER_MILLISECONDS = 1000;
+
+    /** How long the playback thread waits for more audio or AudioTrack space. */
+    private static final long IDLE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private final int mSampleRate;
+    private final AudioRingBuffer mRingBuffer;
+    private final AudioTrack mTrack;
+    private final Thread mPlaybackThread;
+
+    private final AtomicInteger mFlushGeneration = new AtomicInteger(0);
+    private volatile boolean mEndOfUtterance = false;
+    private volatile boolean mReleased = false;
+    private volatile Thread mWaitingProducer = null;
+
+    private volatile long mUtteranceStartedAt = 0;
+    private volatile long mLastFirstAudioLatency = -1;
+    private volatile int mUnderrunCount = 0;
+
+    public AudioOutput(int sampleRate) {
+        mSampleRate = sampleRate;
+        mRingBuffer = new AudioRingBuffer((sampleRate * RING_BUFFER_MILLISECONDS / 1000) * SpeechSynthesis.FORMAT_PCM_S16);
+        mTrack = createAudioTrack(sampleRate);
+
+        mPlaybackThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                playbackLoop();
+            }
+        }, "eSpeakPlayback");
+        mPlaybackThread.start();
+    }
+
+    private static AudioTrack createAudioTrack(int sampleRate) {
+        final int bufferSize = AudioTrack.getMinBufferSize(
+                sampleRate,
+                AudioFormat.CHANNEL_OUT_MONO,
+                AudioFormat.ENCODING_PCM_16BIT);
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return new AudioTrack(
+                    AudioManager.STREAM_MUSIC,
+                    sampleRate,
+                    AudioFormat.CHANNEL_OUT_MONO,
+                    AudioFormat.ENCODING_PCM_16BIT,
+                    bufferSize,
+                    AudioTrack.MODE_STREAM);
+        }
+
+        final AudioTrack.Builder builder = new AudioTrack.Builder()
+                .setAudioAttributes(new AudioAttributes.Builder()
+                        .setUsage(AudioAttributes.USAGE_MEDIA)
+                        .setContentType(AudioAttributes.CONTENT_TYPE_SPEECH)
+                        .build())
+                .setAudioFormat(new AudioFormat.Builder()
+                        .setSampleRate(sampleRate)
+                        .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                        .setChannelMask(AudioFormat.CHANNEL_OUT_MONO)
+                        .build())
+                .setBufferSizeInBytes(bufferSize)
+                .setTransferMode(AudioTrack.MODE_STREAM);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            builder.setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Queues audio for playback, waiting for space in the ring buffer if it is
+     * full. This must only be called from the synthesis thread.
+     *
+     * @return true if the audio was queued, false if the output was flushed or released.
+     */
+    public boolean write(ByteBuffer audioData, int length) {
+        final int generation = mFlushGeneration.get();
+        if (mEndOfUtterance || mUtteranceStartedAt == 0) {
+            mEndOfUtterance = false;
+            mUtteranceStartedAt = System.nanoTime();
+        }
+
+        while (length > 0) {
+            // Stop as soon as the output is flushed, so the rest of the chunk
+            // is not queued after the playback thread has discarded the start.
+            if (mReleased || mFlushGeneration.get() != generation) {
+                return false;
+            }
+
+            final int written = mRingBuffer.write(audioData, length);
+            length -= written;
+            if (written > 0) {
+                LockSupport.unpark(mPlaybackThread);
+                continue;
+            }
+
+            mWaitingProducer = Thread.currentThread();
+            if (mReleased || mFlushGeneration.get() != generation) {
+                mWaitingProducer = null;
+                return false;
+            }
+            LockSupport.parkNanos(this, IDLE_WAIT_NANOS);
+            mWaitingProducer = null;
+        }
+        return mFlushGeneration.get() == generation && !mReleased;
+    }
+
+    /**
+     * Marks the end of the current utterance. The AudioTrack is stopped once
+     * the queued audio has been played.
+     */
+    public void endOfUtterance() {
+        mEndOfUtterance = true;
+        LockSupport.unpark(mPlaybackThread);
+    }
+
+    /**
+     * Discards the queued audio and any audio waiting to be written.
+     */
+    public void flush() {
+        mFlushGeneration.incrementAndGet();
+        LockSupport.unpark(mPlaybackThread);
+        LockSupport.unpark(mWaitingProducer);
+    }
+
+    public void release() {
+        mReleased = true;
+        LockSupport.unpark(mPlaybackThread);
+        LockSupport.unpark(mWaitingProducer);
+        try {
+            mPlaybackThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mTrack.release();
+    }
+
+    /**
+     * Gets the number of times playback ran out of audio in the middle of an
+     * utterance because synthesis did not keep up.
+     */
+    public int getUnderrunCount() {
+        return mUnderrunCount;
+    }
+
+    /**
+     * Gets the number of underruns reported by the AudioTrack.
+     *
+     * @return The underrun count, or -1 if it is not supported on this version of Android.
+     */
+    public int getTrackUnderrunCount() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return -1;
+        }
+        return mTrack.getUnderrunCount();
+    }
+
+    /**
+     * Gets the time between the first audio of the last utterance being
+     * queued and it being written to the AudioTrack.
+     *
+     * @return The latency in microseconds, or -1 if no audio has been played.
+     */
+    public long getFirstAudioLatency() {
+        final long latency = mLastFirstAudioLatency;
+        return (latency < 0) ? -1 : latency / 1000;
+    }
+
+    /**
+     * Gets the amount of audio queued in the ring buffer, in milliseconds.
+     */
+    public int getBufferedMillis() {
+        return (mRingBuffer.available() / SpeechSynthesis.FORMAT_PCM_S16) * 1000 / mSampleRate;
+    }
+
+    private void playbackLoop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+        int generation = mFlushGeneration.get();
+        boolean playing = false;
+        boolean starved = false;
+        long utteranceStartedAt = 0;
+        while (!mReleased) {
+            final int currentGeneration = mFlushGeneration.get();
+            if (currentGeneration != generation) {
+                generation = currentGeneration;
+                mRingBuffer.skip(mRingBuffer.available());
+                mUtteranceStartedAt = 0;
+                LockSupport.unpark(mWaitingProducer);
+                if (playing) {
+                    mTrack.pause();
+                    mTrack.flush();
+                    playing = false;
+                }
+                continue;
+            }
+
+            final boolean endOfUtterance = mEndOfUtterance;
+            final ByteBuffer audioData = mRingBuffer.peek();
+            final int length = audioData.remaining();
+            if (length == 0) {
+                if (endOfUtterance && playing) {
+                    // In streaming mode, stop() plays the audio already written.
+                    mTrack.stop();
+                    playing = false;
+                } else if (playing && !starved) {
+                    starved = true;
+                    ++mUnderrunCount;
+                }
+                LockSupport.parkNanos(this, IDLE_WAIT_NANOS);
+                continue;
+            }
+
+            if (!playing) {
+                mTrack.play();
+                playing = true;
+            }
+            starved = false;
+
+            final int written = mTrack.write(audioData, length, AudioTrack.WRITE_NON_BLOCKING);
+            if (written < 0) {
+                Log.e(TAG, "AudioTrack.write() failed: " + written);
+                mRingBuffer.skip(length);
+                continue;
+            }
+
+            mRingBuffer.skip(written);
+            LockSupport.unpark(mWaitingProducer);
+
+            final long startedAt = mUtteranceStartedAt;
+            if (written > 0 && startedAt != 0 && startedAt != utteranceStartedAt) {
+                utteranceStartedAt = startedAt;
+                mLastFirstAudioLatency = System.nanoTime() - startedAt;
+            }
+
+            if (written < length) {
+                // The AudioTrack buffer is full.
+                LockSupport.parkNanos(this, IDLE_WAIT_NANOS);
+            }
+        }
+
+        if (playing) {
+            mTrack.pause();
+            mTrack.flush();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2013 Reece H. Dunn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.reecedunn.espeak;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free single-producer, single-consumer byte ring buffer.
+ *
+ * The producer calls {@link #write}, and the consumer calls {@link #peek} and
+ * {@link #skip}. The read and write positions only ever increase, so the
+ * number of bytes available is always {@code write - read}.
+ */
+public class AudioRingBuffer {
+    private final byte[] mData;
+    private final ByteBuffer mView;
+    private final int mMask;
+    private final AtomicLong mReadPosition = new AtomicLong(0);
+    private final AtomicLong mWritePosition = new AtomicLong(0);
+
+    public AudioRingBuffer(int minCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(minCapacity, 2) - 1) << 1;
+        mData = new byte[capacity];
+        mView = ByteBuffer.wrap(mData);
+        mMask = capacity - 1;
+    }
+
+    public int capacity() {
+        return mData.length;
+    }
+
+    /** The number of bytes that can be read. */
+    public int available() {
+        return (int)(mWritePosition.get() - mReadPosition.get());
+    }
+
+    /** The number of bytes that can be written. */
+    public int free() {
+        return mData.length - available();
+    }
+
+    /**
+     * Copies up to {@code length} bytes from the buffer's position, advancing
+     * the position by the number of bytes copied.
+     *
+     * @return The number of bytes copied.
+     */
+    public int write(ByteBuffer source, int length) {
+        final long position = mWritePosition.get();
+        final int count = Math.min(length, mData.length - (int)(position - mReadPosition.get()));
+        if (count <= 0) {
+            return 0;
+        }
+
+        final int index = (int)(position & mMask);
+        final int first = Math.min(count, mData.length - index);
+        source.get(mData, index, first);
+        if (count > first) {
+            source.get(mData, 0, count - first);
+        }
+
+        mWritePosition.set(position + count);
+        return count;
+    }
+
+    /**
+     * Gets the next contiguous region of readable bytes. The returned buffer
+     * is only valid until the next call to {@link #peek}.
+     */
+    public ByteBuffer peek() {
+        final long position = mReadPosition.get();
+        final int index = (int)(position & mMask);
+        final int count = Math.min((int)(mWritePosition.get() - position), mData.length - index);
+
+        mView.clear();
+        mView.limit(index + count);
+        mView.position(index);
+        return mView;
+    }
+
+    /** Marks {@code count} bytes as read. */
+    public void skip(int count) {
+        mReadPosition.set(mReadPosition.get() + count);
+    }
+}
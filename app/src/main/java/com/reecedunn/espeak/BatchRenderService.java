@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2013 Reece H. Dunn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.reecedunn.espeak;
+
+import android.app.Service;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A bound service that renders batches of text to WAV files.
+ *
+ * Send MSG_RENDER_BATCH, with replyTo set, and a data bundle holding the jobs
+ * in KEY_JOBS. Each job is a bundle with KEY_TEXT, KEY_VOICE (the eSpeak voice
+ * name) and KEY_OUTPUT_PATH, and optionally the KEY_SSML, KEY_VARIANT and
+ * parameter values; missing parameters use the engine defaults. KEY_WORKERS
+ * sets the number of worker processes to use, up to MAX_WORKERS.
+ *
+ * The jobs are handed to the workers as they become free, and replyTo is sent
+ * MSG_JOB_COMPLETED for each job (arg1 is the job index, arg2 the number of
+ * completed jobs) and MSG_BATCH_COMPLETED with the aggregate throughput.
+ */
+public class BatchRenderService extends Service {
+    private static final String TAG = "eSpeakBatchRender";
+
+    public static final int MSG_RENDER_BATCH = 1;
+    public static final int MSG_JOB_COMPLETED = 2;
+    public static final int MSG_BATCH_COMPLETED = 3;
+
+    public static final String KEY_JOBS = "jobs";
+    public static final String KEY_WORKERS = "workers";
+
+    public static final String KEY_TEXT = "text";
+    public static final String KEY_SSML = "ssml";
+    public static final String KEY_VOICE = "voice";
+    public static final String KEY_VARIANT = "variant";
+    public static final String KEY_RATE = "rate";
+    public static final String KEY_PITCH = "pitch";
+    public static final String KEY_PITCH_RANGE = "pitchRange";
+    public static final String KEY_VOLUME = "volume";
+    public static final String KEY_PUNCTUATION_LEVEL = "punctuationLevel";
+    public static final String KEY_PUNCTUATION_CHARACTERS = "punctuationCharacters";
+    public static final String KEY_OUTPUT_PATH = "outputPath";
+
+    /** MSG_JOB_COMPLETED: whether the file was written. */
+    public static final String KEY_RESULT_SUCCESS = "success";
+    /** MSG_JOB_COMPLETED: why the job failed. */
+    public static final String KEY_RESULT_ERROR = "error";
+    /** MSG_JOB_COMPLETED: the duration of the rendered audio. */
+    public static final String KEY_RESULT_AUDIO_MILLIS = "audioMillis";
+    /** MSG_JOB_COMPLETED: the time taken to render the audio. */
+    public static final String KEY_RESULT_RENDER_MILLIS = "renderMillis";
+    /** MSG_JOB_COMPLETED: the time taken to start the worker's engine, if this job started it. */
+    public static final String KEY_RESULT_ENGINE_MILLIS = "engineMillis";
+    /** MSG_JOB_COMPLETED: the worker process that ran the job. */
+    public static final String KEY_RESULT_WORKER = "worker";
+
+    /** MSG_BATCH_COMPLETED: the number of jobs in the batch. */
+    public static final String KEY_BATCH_JOBS = "jobs";
+    /** MSG_BATCH_COMPLETED: the number of jobs that failed. */
+    public static final String KEY_BATCH_FAILED = "failed";
+    /** MSG_BATCH_COMPLETED: the number of worker processes used. */
+    public static final String KEY_BATCH_WORKERS = "workers";
+    /** MSG_BATCH_COMPLETED: the time from the batch being received to the last job completing. */
+    public static final String KEY_BATCH_ELAPSED_MILLIS = "elapsedMillis";
+    /** MSG_BATCH_COMPLETED: the total duration of the rendered audio. */
+    public static final String KEY_BATCH_AUDIO_MILLIS = "audioMillis";
+    /** MSG_BATCH_COMPLETED: the completed jobs per second. */
+    public static final String KEY_BATCH_JOBS_PER_SECOND = "jobsPerSecond";
+    /** MSG_BATCH_COMPLETED: the seconds of audio rendered per second; above 1 is faster than real time. */
+    public static final String KEY_BATCH_AUDIO_SPEEDUP = "audioSpeedup";
+
+    private static final Class<?>[] WORKERS = new Class<?>[] {
+        RenderWorkerService.Worker0.class,
+        RenderWorkerService.Worker1.class,
+        RenderWorkerService.Worker2.class,
+        RenderWorkerService.Worker3.class,
+    };
+
+    public static final int MAX_WORKERS = WORKERS.length;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper()) {
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what != MSG_RENDER_BATCH) {
+                super.handleMessage(msg);
+                return;
+            }
+
+            final Bundle data = msg.getData();
+            final ArrayList<Bundle> jobs = data.getParcelableArrayList(KEY_JOBS);
+            if (msg.replyTo == null || jobs == null) {
+                Log.e(TAG, "Ignoring a batch without jobs or a reply messenger.");
+                return;
+            }
+
+            final int workers = data.getInt(KEY_WORKERS, Runtime.getRuntime().availableProcessors());
+            startBatch(new Batch(jobs, msg.replyTo, Math.max(1, Math.min(Math.min(workers, MAX_WORKERS), jobs.size()))));
+        }
+    };
+
+    private final Messenger mMessenger = new Messenger(mHandler);
+
+    /** Installs the voice data before the workers start, so they do not race to install it. */
+    private final ExecutorService mInstallThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "eSpeakBatchInstall");
+        }
+    });
+
+    private final ArrayList<Batch> mBatches = new ArrayList<Batch>();
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mMessenger.getBinder();
+    }
+
+    @Override
+    public void onDestroy() {
+        for (Batch batch : new ArrayList<Batch>(mBatches)) {
+            batch.finish();
+        }
+        mInstallThread.shutdownNow();
+        super.onDestroy();
+    }
+
+    private void startBatch(final Batch batch) {
+        mBatches.add(batch);
+        mInstallThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                CheckVoiceData.installVoiceDataIfMissing(BatchRenderService.this);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        batch.start();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * The state of a batch. This is only accessed on the main thread.
+     */
+    private class Batch {
+        private final ArrayList<Bundle> mJobs;
+        private final Messenger mClient;
+        private final Worker[] mWorkers;
+        private final long mStartedAt = System.nanoTime();
+        private int mNextJob = 0;
+        private int mCompleted = 0;
+        private int mFailed = 0;
+        private long mAudioMillis = 0;
+
+        Batch(ArrayList<Bundle> jobs, Messenger client, int workers) {
+            mJobs = jobs;
+            mClient = client;
+            mWorkers = new Worker[workers];
+        }
+
+        void start() {
+            if (!mBatches.contains(this)) {
+                return; // The service was destroyed while installing the voice data.
+            }
+
+            boolean bound = false;
+            for (int i = 0; i < mWorkers.length && !mJobs.isEmpty(); ++i) {
+                mWorkers[i] = new Worker(this, i);
+                if (bindService(new Intent(BatchRenderService.this, WORKERS[i]), mWorkers[i], BIND_AUTO_CREATE)) {
+                    mWorkers[i].mBound = true;
+                    bound = true;
+                } else {
+                    Log.e(TAG, "Unable to bind to render worker " + i);
+                    mWorkers[i].mAlive = false;
+                }
+            }
+
+            if (!bound) {
+                failRemaining("No render workers are available.");
+                finish();
+            }
+        }
+
+        void dispatch(Worker worker) {
+            if (mNextJob >= mJobs.size()) {
+                return;
+            }
+
+            final int index = mNextJob++;
+            final Message msg = Message.obtain(null, RenderWorkerService.MSG_RENDER_JOB, index, 0);
+            msg.setData(mJobs.get(index));
+            msg.replyTo = worker.mReplyTo;
+            try {
+                worker.mService.send(msg);
+                worker.mJob = index;
+            } catch (RemoteException e) {
+                Log.e(TAG, "Unable to send job " + index + " to render worker " + worker.mIndex, e);
+                completed(worker, index, failure(e.toString()));
+            }
+        }
+
+        /**
+         * @param worker The worker that ran the job, or null if no worker ran it.
+         */
+        void completed(Worker worker, int index, Bundle result) {
+            ++mCompleted;
+            if (result.getBoolean(KEY_RESULT_SUCCESS, false)) {
+                mAudioMillis += result.getLong(KEY_RESULT_AUDIO_MILLIS, 0);
+            } else {
+                ++mFailed;
+            }
+
+            if (worker != null) {
+                worker.mJob = -1;
+                result.putInt(KEY_RESULT_WORKER, worker.mIndex);
+            }
+            final Message msg = Message.obtain(null, MSG_JOB_COMPLETED, index, mCompleted);
+            msg.setData(result);
+            send(msg);
+
+            if (mCompleted == mJobs.size()) {
+                finish();
+            } else if (worker != null && worker.mService != null) {
+                dispatch(worker);
+            }
+        }
+
+        /** Fails the job a worker was running when its process died, and any jobs no worker is left to run. */
+        void disconnected(Worker worker) {
+            worker.mService = null;
+            worker.mAlive = false;
+            if (worker.mJob != -1) {
+                completed(worker, worker.mJob, failure("The render worker process died."));
+            }
+
+            for (Worker other : mWorkers) {
+                if (other != null && other.mAlive) {
+                    return;
+                }
+            }
+            failRemaining("No render workers are available.");
+        }
+
+        private void failRemaining(String error) {
+            while (mNextJob < mJobs.size()) {
+                completed(null, mNextJob++, failure(error));
+            }
+        }
+
+        private Bundle failure(String error) {
+            final Bundle result = new Bundle();
+            result.putBoolean(KEY_RESULT_SUCCESS, false);
+            result.putString(KEY_RESULT_ERROR, error);
+            return result;
+        }
+
+        void finish() {
+            if (!mBatches.remove(this)) {
+                return;
+            }
+
+            // Unbind the workers whose process died too, or the system restarts it and keeps it running.
+            for (Worker worker : mWorkers) {
+                if (worker != null && worker.mBound) {
+                    unbindService(worker);
+                    worker.mBound = false;
+                }
+            }
+
+            final long elapsedMillis = (System.nanoTime() - mStartedAt) / 1000000;
+            final Bundle summary = new Bundle();
+            summary.putInt(KEY_BATCH_JOBS, mJobs.size());
+            summary.putInt(KEY_BATCH_FAILED, mFailed + (mJobs.size() - mCompleted));
+            summary.putInt(KEY_BATCH_WORKERS, mWorkers.length);
+            summary.putLong(KEY_BATCH_ELAPSED_MILLIS, elapsedMillis);
+            summary.putLong(KEY_BATCH_AUDIO_MILLIS, mAudioMillis);
+            summary.putDouble(KEY_BATCH_JOBS_PER_SECOND, (elapsedMillis == 0) ? 0 : mCompleted * 1000.0 / elapsedMillis);
+            summary.putDouble(KEY_BATCH_AUDIO_SPEEDUP, (elapsedMillis == 0) ? 0 : (double)mAudioMillis / elapsedMillis);
+            Log.i(TAG, "Rendered " + mJobs.size() + " jobs (" + mFailed + " failed) with " + mWorkers.length + " workers in "
+                    + elapsedMillis + "ms: " + mAudioMillis + "ms of audio");
+
+            final Message msg = Message.obtain(null, MSG_BATCH_COMPLETED, mJobs.size(), mFailed);
+            msg.setData(summary);
+            send(msg);
+        }
+
+        private void send(Message msg) {
+            try {
+                mClient.send(msg);
+            } catch (RemoteException e) {
+                Log.w(TAG, "The batch client has gone away", e);
+            }
+        }
+    }
+
+    /**
+     * A connection to a worker process. Its replies are handled on the main thread.
+     */
+    private static class Worker implements ServiceConnection {
+        private final Batch mBatch;
+        private final int mIndex;
+        private final Messenger mReplyTo;
+        private Messenger mService = null;
+        /** Whether bindService succeeded, so the connection must be unbound. */
+        private boolean mBound = false;
+        /** Whether the worker can run jobs; false once its process has died. */
+        private boolean mAlive = true;
+        private int mJob = -1;
+
+        Worker(Batch batch, int index) {
+            mBatch = batch;
+            mIndex = index;
+            mReplyTo = new Messenger(new Handler(Looper.getMainLooper()) {
+                @Override
+                public void handleMessage(Message msg) {
+                    if (msg.what == RenderWorkerService.MSG_JOB_RESULT && msg.arg1 == mJob) {
+                        mBatch.completed(Worker.this, msg.arg1, msg.getData());
+                    } else {
+                        super.handleMessage(msg);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mService = new Messenger(service);
+            mAlive = true;
+            mBatch.dispatch(this);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mBatch.disconnected(this);
+        }
+    }
+}
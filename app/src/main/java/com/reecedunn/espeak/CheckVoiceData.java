@@ -21,7 +21,6 @@ package com.reecedunn.espeak;
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
-import android.content.res.AssetManager;
 import android.os.Bundle;
 import android.speech.tts.TextToSpeech.Engine;
 import android.util.Log;
@@ -29,18 +28,11 @@ import android.util.Log;
 import com.reecedunn.espeak.SpeechSynthesis.SynthReadyCallback;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.FileOutputStream;
-
 public class CheckVoiceData extends Activity {
     private static final String TAG = "eSpeakTTS";
 
@@ -63,6 +55,10 @@ public class CheckVoiceData extends Activity {
     }
 
     public static boolean hasBaseResources(Context context) {
+        if (VoiceDataArchive.isAvailable(context)) {
+            return true; // The engine reads the voice data from the APK.
+        }
+
         File dataPath = getDataPath(context);
         File voicesDir = new File(dataPath, "voices");
         File langDir = new File(dataPath, "lang");
@@ -78,95 +74,45 @@ public class CheckVoiceData extends Activity {
 
 
     public static boolean canUpgradeResources(Context context) {
-        return false;
+        if (VoiceDataArchive.isAvailable(context) || !hasBaseResources(context)) {
+            return false;
+        }
+        return !VoiceDataInstaller.isUpToDate(context);
     }
 
 
     // ------------------------------------------------------------------------
-    // 2.  Installer — copies espeak-ng-data from assets if missing
+    // 2.  Installer — extracts espeak-ng-data from the raw resource if missing
     // ------------------------------------------------------------------------
 
+    /**
+     * Installs the voice data if it is missing, or updates the files that
+     * have changed if it is from an older version of the app.
+     */
     public static void installVoiceDataIfMissing(Context context) {
-        File dataPath = getDataPath(context);
-        if (hasBaseResources(context)) {
-            Log.v("eSpeakTTS", "eSpeak base data present.");
-            return;
-        }
-
-        Log.v("eSpeakTTS", "Installing missing eSpeak voice data...");
-        dataPath.mkdirs();
-
-        try {
-            // Copy espeakdata.zip from res/raw to app_voices/
-            InputStream is = context.getResources().openRawResource(R.raw.espeakdata);
-            File zipFile = new File(dataPath.getParentFile(), "espeakdata.zip");
-            FileOutputStream fos = new FileOutputStream(zipFile);
-            byte[] buffer = new byte[4096];
-            int len;
-            while ((len = is.read(buffer)) > 0) fos.write(buffer, 0, len);
-            fos.close();
-            is.close();
-
-            // Unzip it
-            unzip(zipFile, dataPath);
-
-
-            zipFile.delete(); // remove zip after extraction
-            Log.v("eSpeakTTS", "Installation complete!");
-        } catch (Exception e) {
-            Log.e("eSpeakTTS", "Installation failed: " + e.getMessage(), e);
-        }
-    }
-
-    /** Helper: unzip espeakdata.zip */
-    private static void unzip(File zipFile, File targetDir) throws IOException {
-        java.util.zip.ZipInputStream zis = new java.util.zip.ZipInputStream(new java.io.FileInputStream(zipFile));
-        java.util.zip.ZipEntry entry;
-        byte[] buffer = new byte[4096];
-        while ((entry = zis.getNextEntry()) != null) {
-            File outFile = new File(targetDir, entry.getName());
-            if (entry.isDirectory()) {
-                outFile.mkdirs();
-            } else {
-                outFile.getParentFile().mkdirs();
-                java.io.FileOutputStream fos = new java.io.FileOutputStream(outFile);
-                int len;
-                while ((len = zis.read(buffer)) > 0) fos.write(buffer, 0, len);
-                fos.close();
+        synchronized (CheckVoiceData.class) {
+            if (canUpgradeResources(context)) {
+                Log.v(TAG, "Updating the eSpeak voice data...");
+                try {
+                    VoiceDataInstaller.update(context, null);
+                } catch (IOException e) {
+                    Log.e(TAG, "Update failed: " + e.getMessage(), e);
+                }
+                return;
             }
-            zis.closeEntry();
-        }
-        zis.close();
-    }
 
+            if (hasBaseResources(context)) {
+                Log.v(TAG, "eSpeak base data present.");
+                return;
+            }
 
-    private static boolean copyAssetFolder(AssetManager assetManager, String from, String to) throws IOException {
-        String[] assets = assetManager.list(from);
-        if (assets == null || assets.length == 0) return false;
-        File dir = new File(to);
-        if (!dir.exists()) dir.mkdirs();
-        for (String asset : assets) {
-            String subFrom = from + "/" + asset;
-            String subTo = to + "/" + asset;
-            String[] list = assetManager.list(subFrom);
-            if (list != null && list.length > 0) {
-                copyAssetFolder(assetManager, subFrom, subTo);
-            } else {
-                copyAsset(assetManager, subFrom, subTo);
+            Log.v(TAG, "Installing missing eSpeak voice data...");
+            try {
+                VoiceDataInstaller.install(context, null);
+            } catch (IOException e) {
+                Log.e(TAG, "Installation failed: " + e.getMessage(), e);
             }
         }
-        return true;
-    }
-
-    private static void copyAsset(AssetManager assetManager, String from, String to) throws IOException {
-        InputStream in = assetManager.open(from);
-        OutputStream out = new FileOutputStream(new File(to));
-        byte[] buffer = new byte[4096];
-        int read;
-        while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
-        in.close();
-        out.flush();
-        out.close();
     }
 
 
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2013 Reece H. Dunn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.reecedunn.espeak;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Encodes text as NUL-terminated UTF-8 in a reusable direct buffer, one
+ * piece at a time.
+ *
+ * The pieces end at sentence or paragraph boundaries where possible, so
+ * eSpeak speaks them in the same way as the whole text. When the text does
+ * not fit in the buffer, the first piece is a single sentence so the audio
+ * can start quickly, and the later pieces fill the buffer. Only one piece is
+ * encoded at a time, so the memory used does not depend on the length of the
+ * text.
+ */
+public class ClauseEncoder {
+    private final ByteBuffer mBuffer;
+    private final int mMaxChars;
+    private final CharsetEncoder mEncoder;
+
+    private CharSequence mText = null;
+    private int mStart = 0;
+    private int mEnd = 0;
+    private int mCodePointOffset = 0;
+    private int mLength = 0;
+
+    public ClauseEncoder(int capacity) {
+        mBuffer = ByteBuffer.allocateDirect(capacity);
+        // A UTF-16 code unit is at most 3 bytes in UTF-8, and the last byte
+        // is kept for the NUL terminator.
+        mMaxChars = (capacity - 1) / 3;
+        mEncoder = Charset.forName("UTF-8").newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Starts encoding the text. Passing null releases the previous text.
+     */
+    public void reset(CharSequence text) {
+        mText = text;
+        mStart = 0;
+        mEnd = 0;
+        mCodePointOffset = 0;
+        mLength = 0;
+    }
+
+    /**
+     * Encodes the next piece of the text into the buffer.
+     *
+     * @return true if a piece was encoded, false at the end of the text.
+     */
+    public boolean next() {
+        if (mText == null) {
+            return false;
+        }
+
+        mCodePointOffset += Character.codePointCount(mText, mStart, mEnd);
+        mStart = mEnd;
+        if (mStart >= mText.length()) {
+            mLength = 0;
+            return false;
+        }
+        mEnd = findEnd(mText, mStart, mMaxChars, mStart == 0 && mText.length() > mMaxChars);
+
+        mBuffer.clear();
+        mBuffer.limit(mBuffer.capacity() - 1);
+        mEncoder.reset();
+        mEncoder.encode(CharBuffer.wrap(mText, mStart, mEnd), mBuffer, true);
+        mEncoder.flush(mBuffer);
+        mLength = mBuffer.position();
+        mBuffer.limit(mBuffer.capacity());
+        mBuffer.put(mLength, (byte)0);
+        return true;
+    }
+
+    /** The buffer holding the encoded piece, followed by a NUL byte. */
+    public ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    /** The length of the encoded piece in bytes, excluding the NUL byte. */
+    public int getLength() {
+        return mLength;
+    }
+
+    /** The number of code points in the text before the encoded piece. */
+    public int getCodePointOffset() {
+        return mCodePointOffset;
+    }
+
+    /** Whether the encoded piece is the end of the text. */
+    public boolean isLast() {
+        return mText == null || mEnd >= mText.length();
+    }
+
+    private static int findEnd(CharSequence text, int start, int maxChars, boolean firstSentence) {
+        final int limit = Math.min(text.length(), start + maxChars);
+        int sentenceEnd = -1;
+        int wordEnd = -1;
+        for (int end = start + 1; end <= limit; ++end) {
+            final char c = text.charAt(end - 1);
+            if (isFullWidthSentenceEnd(c) || isParagraphEnd(text, start, end) || (isSentenceEnd(c) && (end == text.length() || Character.isWhitespace(text.charAt(end))))) {
+                sentenceEnd = end;
+                if (firstSentence) {
+                    return sentenceEnd;
+                }
+            } else if (Character.isWhitespace(c)) {
+                wordEnd = end;
+            }
+        }
+
+        if (limit == text.length()) {
+            return limit;
+        }
+        if (sentenceEnd > 0) {
+            return sentenceEnd;
+        }
+        if (wordEnd > 0) {
+            return wordEnd;
+        }
+        // Don't split a surrogate pair.
+        if (Character.isHighSurrogate(text.charAt(limit - 1)) && limit - 1 > start) {
+            return limit - 1;
+        }
+        return limit;
+    }
+
+    /**
+     * Whether the text before end finishes with a blank line. A single line
+     * break is not a boundary, as hard-wrapped text breaks lines in the
+     * middle of a sentence.
+     */
+    private static boolean isParagraphEnd(CharSequence text, int start, int end) {
+        if (text.charAt(end - 1) != '\n') {
+            return false;
+        }
+        for (int i = end - 2; i >= start; --i) {
+            final char c = text.charAt(i);
+            if (c == '\n') {
+                return true;
+            }
+            if (!Character.isWhitespace(c)) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSentenceEnd(char c) {
+        return c == '.' || c == '!' || c == '?';
+    }
+
+    private static boolean isFullWidthSentenceEnd(char c) {
+        return c == '\u3002' || c == '\uFF01' || c == '\uFF1F';
+    }
+}
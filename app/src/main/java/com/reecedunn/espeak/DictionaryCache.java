@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2013 Reece H. Dunn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.reecedunn.espeak;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The language dictionaries that are installed on demand.
+ *
+ * Only the English dictionary is installed with the voice data. The other
+ * dictionaries are extracted the first time a voice that uses them is
+ * selected. Their modification time records when they were last used, and
+ * the least recently used dictionaries are deleted when they are larger than
+ * the cache size.
+ *
+ * When the engine reads the voice data from the APK, all of the dictionaries
+ * are available and nothing is installed.
+ */
+public class DictionaryCache {
+    private static final String TAG = "eSpeakTTS";
+
+    private static final String DICTIONARY_SUFFIX = "_dict";
+
+    /** The dictionary installed with the voice data, which is never deleted. */
+    private static final String BASE_DICTIONARY = "en" + DICTIONARY_SUFFIX;
+
+    /** How often the access time of a dictionary in use is updated. */
+    private static final long ACCESS_RESOLUTION_MILLIS = 60 * 60 * 1000;
+
+    private static volatile long mCacheSize = 32 * 1024 * 1024;
+
+    /** The dictionary used by each voice identifier. */
+    private static final Map<String, String> mDictionaries = new HashMap<String, String>();
+
+    /**
+     * Sets the size in bytes that the on demand dictionaries are kept under.
+     */
+    public static void setCacheSize(long bytes) {
+        mCacheSize = bytes;
+    }
+
+    public static long getCacheSize() {
+        return mCacheSize;
+    }
+
+    /**
+     * Whether the voice data file is a dictionary that is installed on demand.
+     *
+     * @param path The path of the file, relative to the data path.
+     */
+    public static boolean isOnDemand(String path) {
+        return path.endsWith(DICTIONARY_SUFFIX) && path.indexOf('/') == -1 && !path.equals(BASE_DICTIONARY);
+    }
+
+    /**
+     * Gets the name of the dictionary used by a voice file, using the same
+     * rules as eSpeak: the language code of the first language line, or the
+     * dictionary line if it follows it.
+     *
+     * @param voiceFile The contents of the voice file.
+     * @return The dictionary name without the "_dict" suffix, or null if the voice file does not have a language.
+     */
+    public static String getDictionaryName(String voiceFile) {
+        String dictionary = null;
+        boolean haveLanguage = false;
+        for (String line : voiceFile.split("\n")) {
+            final int comment = line.indexOf("//");
+            if (comment != -1) {
+                line = line.substring(0, comment);
+            }
+
+            final String[] fields = line.trim().split("\\s+");
+            if (fields.length < 2) {
+                continue;
+            }
+
+            if (fields[0].equals("language")) {
+                if (fields[1].equals("variant")) {
+                    return null;
+                }
+                if (!haveLanguage) {
+                    haveLanguage = true;
+                    final int separator = fields[1].indexOf('-');
+                    dictionary = (separator == -1) ? fields[1] : fields[1].substring(0, separator);
+                }
+            } else if (fields[0].equals("dictionary")) {
+                dictionary = fields[1];
+            }
+        }
+        return dictionary;
+    }
+
+    /**
+     * Makes sure the dictionary used by the voice is installed, and records
+     * that it has been used.
+     *
+     * @return false if the dictionary could not be installed.
+     */
+    public static boolean prepare(Context context, Voice voice) {
+        if (VoiceDataArchive.isAvailable(context)) {
+            return true;
+        }
+
+        final File dataPath = CheckVoiceData.getDataPath(context);
+        final String name = getDictionaryFor(dataPath, voice.identifier);
+        if (name == null || !isOnDemand(name)) {
+            return true;
+        }
+
+        final File dictionary = new File(dataPath, name);
+        if (dictionary.exists()) {
+            final long now = System.currentTimeMillis();
+            if (now - dictionary.lastModified() > ACCESS_RESOLUTION_MILLIS) {
+                dictionary.setLastModified(now);
+            }
+            return true;
+        }
+
+        try {
+            if (!VoiceDataInstaller.installDictionary(context, name)) {
+                Log.e(TAG, "The voice data does not have the dictionary " + name + " for " + voice.identifier);
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to install the dictionary " + name + " for " + voice.identifier, e);
+            return false;
+        }
+    }
+
+    private static String getDictionaryFor(File dataPath, String identifier) {
+        synchronized (mDictionaries) {
+            if (mDictionaries.containsKey(identifier)) {
+                return mDictionaries.get(identifier);
+            }
+        }
+
+        // eSpeak looks for the voice in the voices directory before the lang directory.
+        File voiceFile = new File(dataPath, "voices/" + identifier);
+        if (!voiceFile.isFile()) {
+            voiceFile = new File(dataPath, "lang/" + identifier);
+        }
+
+        String name = null;
+        try {
+            final String dictionary = getDictionaryName(FileUtils.read(voiceFile));
+            if (dictionary != null) {
+                name = dictionary + DICTIONARY_SUFFIX;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read the voice file for " + identifier, e);
+            return null;
+        }
+
+        synchronized (mDictionaries) {
+            mDictionaries.put(identifier, name);
+        }
+        return name;
+    }
+
+    /**
+     * Deletes the least recently used on demand dictionaries, other than the
+     * one that is being used, until they fit in the cache size. Only the
+     * dictionaries from the voice data are deleted, not imported ones, as
+     * they can be installed again.
+     */
+    static void evict(File dataPath, final VoiceDataManifest installed, String inUse) {
+        final File[] dictionaries = dataPath.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                final VoiceDataManifest.Entry entry = installed.get(file.getName());
+                return file.isFile() && isOnDemand(file.getName()) && entry != null && entry.size == file.length();
+            }
+        });
+        if (dictionaries == null) {
+            return;
+        }
+
+        long size = 0;
+        for (File dictionary : dictionaries) {
+            size += dictionary.length();
+        }
+
+        final long cacheSize = mCacheSize;
+        if (size <= cacheSize) {
+            return;
+        }
+
+        Arrays.sort(dictionaries, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File dictionary : dictionaries) {
+            if (size <= cacheSize) {
+                break;
+            }
+            if (dictionary.getName().equals(inUse)) {
+                continue;
+            }
+
+            final long length = dictionary.length();
+            if (dictionary.delete()) {
+                Log.i(TAG, "Removed the unused dictionary " + dictionary.getName());
+                size -= length;
+            }
+        }
+    }
+}
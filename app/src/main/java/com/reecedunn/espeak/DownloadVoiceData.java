@@ -26,13 +26,7 @@ import android.os.Bundle;
 import android.view.accessibility.AccessibilityEvent;
 import android.widget.ProgressBar;
 
-import java.io.BufferedInputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 public class DownloadVoiceData extends Activity {
     public static final String BROADCAST_LANGUAGES_UPDATED = "com.reecedunn.espeak.LANGUAGES_UPDATED";
@@ -48,9 +42,7 @@ public class DownloadVoiceData extends Activity {
         mProgress = (ProgressBar)findViewById(R.id.progress);
         Context storageContext = EspeakApp.getStorageContext();
 
-        final File dataPath = CheckVoiceData.getDataPath(storageContext).getParentFile();
-
-        mAsyncExtract = new AsyncExtract(storageContext, R.raw.espeakdata, dataPath, mProgress) {
+        mAsyncExtract = new AsyncExtract(storageContext, mProgress) {
             @Override
             protected void onPostExecute(Integer result) {
                 switch (result) {
@@ -85,11 +77,13 @@ public class DownloadVoiceData extends Activity {
     private static final int PROGRESS_STARTING = 0;
     private static final int PROGRESS_EXTRACTING = 1;
 
+    /** The progress bar scale, as the archive size can exceed the range of an int. */
+    private static final int PROGRESS_MAX = 1000;
+
     private static class ExtractProgress {
         int total;
         int progress = 0;
         int state = PROGRESS_STARTING;
-        File file;
 
         public ExtractProgress(int total) {
             this.total = total;
@@ -98,71 +92,39 @@ public class DownloadVoiceData extends Activity {
 
     private static class AsyncExtract extends AsyncTask<Void, ExtractProgress, Integer> {
         private final Context mContext;
-        private final int mRawResId;
-        private final File mOutput;
         private final ProgressBar mProgress;
 
-        public AsyncExtract(Context context, int rawResId, File output, ProgressBar progress) {
+        public AsyncExtract(Context context, ProgressBar progress) {
             mContext = context;
-            mRawResId = rawResId;
-            mOutput = output;
             mProgress = progress;
         }
 
         @Override
         protected Integer doInBackground(Void... params) {
-            FileUtils.rmdir(CheckVoiceData.getDataPath(mContext));
+            if (VoiceDataArchive.isAvailable(mContext)) {
+                return RESULT_OK; // The engine reads the voice data from the APK.
+            }
 
-            final InputStream stream = mContext.getResources().openRawResource(mRawResId);
-            final ZipInputStream zipStream = new ZipInputStream(new BufferedInputStream(stream));
+            final ExtractProgress progress = new ExtractProgress(PROGRESS_MAX);
+            publishProgress(progress);
+            progress.state = PROGRESS_EXTRACTING;
 
             try {
-                ExtractProgress progress = new ExtractProgress(stream.available());
-                publishProgress(progress);
-                progress.state = PROGRESS_EXTRACTING;
-
-                final byte[] buffer = new byte[10240];
-
-                int bytesRead;
-                ZipEntry entry;
-
-                while (!isCancelled() && ((entry = zipStream.getNextEntry()) != null)) {
-                    progress.file = new File(mOutput, entry.getName());
-                    publishProgress(progress);
-
-                    if (entry.isDirectory()) {
-                        progress.file.mkdirs();
-                        continue;
+                final boolean installed = VoiceDataInstaller.update(mContext, new VoiceDataInstaller.ProgressListener() {
+                    @Override
+                    public void onProgress(long read, long total) {
+                        progress.progress = (total == 0) ? 0 : (int)(read * PROGRESS_MAX / total);
+                        publishProgress(progress);
                     }
 
-                    // Ensure the target path exists.
-                    progress.file.getParentFile().mkdirs();
-
-                    final FileOutputStream outputStream = new FileOutputStream(progress.file);
-                    try {
-                        while (!isCancelled() && ((bytesRead = zipStream.read(buffer)) != -1)) {
-                            outputStream.write(buffer, 0, bytesRead);
-                            progress.total += bytesRead;
-                        }
-                    } finally {
-                        outputStream.close();
+                    @Override
+                    public boolean isCancelled() {
+                        return AsyncExtract.this.isCancelled();
                     }
-                    zipStream.closeEntry();
-                }
-
-                final String version = FileUtils.read(mContext.getResources().openRawResource(R.raw.espeakdata_version));
-                final File outputFile = new File(mOutput, "espeak-ng-data/version");
-
-                FileUtils.write(outputFile, version);
-                return RESULT_OK;
-            } catch (Exception e) {
+                });
+                return installed ? RESULT_OK : RESULT_CANCELED;
+            } catch (IOException e) {
                 e.printStackTrace();
-            } finally {
-                try {
-                    zipStream.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
             }
 
             return RESULT_CANCELED;
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2013 Reece H. Dunn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.reecedunn.espeak;
+
+/**
+ * The voice and parameter values used to synthesize a single utterance.
+ */
+public class EngineSettings {
+    public final Voice voice;
+    public final VoiceVariant variant;
+    public final int rate;
+    public final int pitch;
+    public final int pitchRange;
+    public final int volume;
+    public final int punctuationLevel;
+    public final String punctuationCharacters;
+
+    public EngineSettings(Voice voice, VoiceVariant variant, int rate, int pitch, int pitchRange,
+                          int volume, int punctuationLevel, String punctuationCharacters) {
+        this.voice = voice;
+        this.variant = variant;
+        this.rate = rate;
+        this.pitch = pitch;
+        this.pitchRange = pitchRange;
+        this.volume = volume;
+        this.punctuationLevel = punctuationLevel;
+        this.punctuationCharacters = punctuationCharacters;
+    }
+
+    /**
+     * Creates the settings for a voice using the engine's default parameter values.
+     */
+    public static EngineSettings forVoice(SpeechSynthesis engine, Voice voice, int rate, int pitch) {
+        return new EngineSettings(voice,
+                VoiceVariant.parseVoiceVariant(VoiceVariant.MALE),
+                rate,
+                pitch,
+                engine.PitchRange.getDefaultValue(),
+                engine.Volume.getDefaultValue(),
+                engine.Punctuation.getDefaultValue(),
+                null);
+    }
+
+    boolean hasSameVoice(EngineSettings other) {
+        return voice.identifier.equals(other.voice.identifier)
+                && voice.name.equals(other.voice.name)
+                && variant.equals(other.variant);
+    }
+
+    boolean hasSamePunctuationCharacters(EngineSettings other) {
+        if (punctuationCharacters == null) {
+            return other.punctuationCharacters == null;
+        }
+        return punctuationCharacters.equals(other.punctuationCharacters);
+    }
+}
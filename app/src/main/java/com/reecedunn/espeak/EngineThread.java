@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2013 Reece H. Dunn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.reecedunn.espeak;
+
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The thread that makes every call into the process-global native engine.
+ *
+ * Commands are run in order from a lock-free queue, so queuing a command
+ * never waits for a monitor held while the engine is synthesizing. Commands
+ * can also be queued ahead of the waiting commands, or removed before they
+ * are run.
+ */
+public class EngineThread extends Thread implements Executor {
+    private static final String TAG = EngineThread.class.getSimpleName();
+
+    private final ConcurrentLinkedDeque<Runnable> mCommands = new ConcurrentLinkedDeque<Runnable>();
+
+    private EngineThread(String name) {
+        super(name);
+        setDaemon(true);
+    }
+
+    public static EngineThread start(String name) {
+        final EngineThread thread = new EngineThread(name);
+        thread.start();
+        return thread;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        mCommands.offerLast(command);
+        LockSupport.unpark(this);
+    }
+
+    /**
+     * Queues the command ahead of the commands that are waiting to run.
+     */
+    public void executeFirst(Runnable command) {
+        mCommands.offerFirst(command);
+        LockSupport.unpark(this);
+    }
+
+    /**
+     * Removes a command that has not started running.
+     *
+     * @return true if the command was removed from the queue.
+     */
+    public boolean remove(Runnable command) {
+        return mCommands.remove(command);
+    }
+
+    public boolean isCurrentThread() {
+        return Thread.currentThread() == this;
+    }
+
+    /**
+     * Runs the callable on the engine thread, waiting for it to complete.
+     * When called from the engine thread, the callable is run immediately.
+     */
+    public <T> T call(Callable<T> callable) {
+        return call(callable, false);
+    }
+
+    /**
+     * Runs the callable ahead of the commands that are waiting to run, e.g.
+     * queued synthesis requests, waiting for it to complete. This is used
+     * for initialization and for reading the engine state, so the caller
+     * only waits for the command that is running.
+     */
+    public <T> T callFirst(Callable<T> callable) {
+        return call(callable, true);
+    }
+
+    private <T> T call(Callable<T> callable, boolean first) {
+        if (isCurrentThread()) {
+            try {
+                return callable.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        final FutureTask<T> task = new FutureTask<T>(callable);
+        if (first) {
+            executeFirst(task);
+        } else {
+            execute(task);
+        }
+
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    // The engine state must be consistent when this returns,
+                    // so wait for the command to complete.
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            final Runnable command = mCommands.pollFirst();
+            if (command == null) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            // This is the only engine thread, so it must keep running after
+            // a command fails, or every later call would wait forever.
+            try {
+                command.run();
+            } catch (Throwable e) {
+                Log.e(TAG, "Engine command failed", e);
+            }
+        }
+    }
+}
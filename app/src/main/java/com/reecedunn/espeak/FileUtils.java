@@ -51,11 +51,11 @@ public class FileUtils {
 
     private static ByteArrayOutputStream readByteArray(InputStream stream, int length) throws IOException {
         ByteArrayOutputStream content = new ByteArrayOutputStream(length);
-        int c = stream.read();
-        while (c != -1)
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = stream.read(buffer)) != -1)
         {
-            content.write((byte)c);
-            c = stream.read();
+            content.write(buffer, 0, read);
         }
         return content;
     }
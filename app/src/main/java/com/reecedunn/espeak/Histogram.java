@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2013 Reece H. Dunn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.reecedunn.espeak;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram with fixed buckets. Recording a value does not allocate or
+ * lock, so it can be used on the synthesis and audio threads.
+ */
+public class Histogram {
+    private final String mName;
+    private final String mUnit;
+    private final long[] mBounds;
+    private final AtomicLongArray mCounts;
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * @param name   The name of the histogram.
+     * @param unit   The unit of the recorded values.
+     * @param bounds The inclusive upper bound of each bucket, in ascending order.
+     *               Larger values are counted in an extra overflow bucket.
+     */
+    public Histogram(String name, String unit, long[] bounds) {
+        mName = name;
+        mUnit = unit;
+        mBounds = bounds;
+        mCounts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    /**
+     * Creates bucket bounds that start at first and double for each bucket.
+     */
+    public static long[] exponentialBounds(long first, int count) {
+        final long[] bounds = new long[count];
+        for (int i = 0; i < count; ++i) {
+            bounds[i] = first << i;
+        }
+        return bounds;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String getUnit() {
+        return mUnit;
+    }
+
+    public void record(long value) {
+        int low = 0;
+        int high = mBounds.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (value <= mBounds[mid]) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        mCounts.incrementAndGet(low);
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getSum() {
+        return mSum.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public long getMean() {
+        final long count = mCount.get();
+        return (count == 0) ? 0 : mSum.get() / count;
+    }
+
+    /** The number of buckets, including the overflow bucket. */
+    public int getBucketCount() {
+        return mCounts.length();
+    }
+
+    /** The upper bound of the bucket, or Long.MAX_VALUE for the overflow bucket. */
+    public long getBucketBound(int bucket) {
+        return (bucket < mBounds.length) ? mBounds[bucket] : Long.MAX_VALUE;
+    }
+
+    public long getBucketValue(int bucket) {
+        return mCounts.get(bucket);
+    }
+
+    /**
+     * Estimates a percentile as the upper bound of the bucket it is in. Values
+     * in the overflow bucket are reported as the maximum recorded value.
+     *
+     * @param percentile The percentile, from 0 to 100.
+     */
+    public long getPercentile(double percentile) {
+        final long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+
+        final long target = (long)Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < mBounds.length; ++i) {
+            seen += mCounts.get(i);
+            if (seen >= target && seen > 0) {
+                return Math.min(mBounds[i], mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < mCounts.length(); ++i) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.print(mName);
+        writer.print(" (" + mUnit + "): count=" + getCount());
+        writer.print(" mean=" + getMean());
+        writer.print(" p50=" + getPercentile(50));
+        writer.print(" p90=" + getPercentile(90));
+        writer.print(" p99=" + getPercentile(99));
+        writer.println(" max=" + getMax());
+
+        writer.print("  ");
+        for (int i = 0; i < mCounts.length(); ++i) {
+            final long value = mCounts.get(i);
+            if (value == 0) {
+                continue;
+            }
+            writer.print((i < mBounds.length) ? "<=" + mBounds[i] : ">" + mBounds[mBounds.length - 1]);
+            writer.print(":" + value + " ");
+        }
+        writer.println();
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2013 Reece H. Dunn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.reecedunn.espeak;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+import java.util.Arrays;
+
+/**
+ * Exposes the synthesis metrics as a read-only table, with one row per
+ * histogram. The buckets column lists the non-empty buckets as
+ * "upper-bound:count" pairs, with "max" for the overflow bucket.
+ *
+ * The metrics show when and how much the engine is used, so reading them
+ * requires the signature-level READ_METRICS permission.
+ */
+public class MetricsProvider extends ContentProvider {
+    public static final String AUTHORITY = "com.reecedunn.espeak.metrics";
+    public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/histograms");
+    public static final String PERMISSION_READ_METRICS = "com.reecedunn.espeak.permission.READ_METRICS";
+
+    public static final String COLUMN_NAME = "name";
+    public static final String COLUMN_UNIT = "unit";
+    public static final String COLUMN_COUNT = "count";
+    public static final String COLUMN_SUM = "sum";
+    public static final String COLUMN_MAX = "max";
+    public static final String COLUMN_P50 = "p50";
+    public static final String COLUMN_P90 = "p90";
+    public static final String COLUMN_P99 = "p99";
+    public static final String COLUMN_BUCKETS = "buckets";
+
+    private static final String[] COLUMNS = new String[] {
+        COLUMN_NAME, COLUMN_UNIT, COLUMN_COUNT, COLUMN_SUM, COLUMN_MAX,
+        COLUMN_P50, COLUMN_P90, COLUMN_P99, COLUMN_BUCKETS,
+    };
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        checkUri(uri);
+        if (projection == null) {
+            projection = COLUMNS;
+        }
+        final int[] columns = new int[projection.length];
+        for (int i = 0; i < projection.length; ++i) {
+            columns[i] = Arrays.asList(COLUMNS).indexOf(projection[i]);
+            if (columns[i] == -1) {
+                throw new IllegalArgumentException("Unknown column " + projection[i]);
+            }
+        }
+
+        final MatrixCursor cursor = new MatrixCursor(projection);
+        final Object[] row = new Object[projection.length];
+        for (Histogram histogram : SynthesisMetrics.getInstance().getHistograms()) {
+            final StringBuilder buckets = new StringBuilder();
+            for (int i = 0; i < histogram.getBucketCount(); ++i) {
+                final long value = histogram.getBucketValue(i);
+                if (value == 0) {
+                    continue;
+                }
+                if (buckets.length() > 0) {
+                    buckets.append(',');
+                }
+                final long bound = histogram.getBucketBound(i);
+                buckets.append((bound == Long.MAX_VALUE) ? "max" : Long.toString(bound));
+                buckets.append(':').append(value);
+            }
+
+            final Object[] values = new Object[] {
+                histogram.getName(),
+                histogram.getUnit(),
+                histogram.getCount(),
+                histogram.getSum(),
+                histogram.getMax(),
+                histogram.getPercentile(50),
+                histogram.getPercentile(90),
+                histogram.getPercentile(99),
+                buckets.toString(),
+            };
+            for (int i = 0; i < columns.length; ++i) {
+                row[i] = values[columns[i]];
+            }
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    private static void checkUri(Uri uri) {
+        if (!CONTENT_URI.equals(uri)) {
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        checkUri(uri);
+        return "vnd.android.cursor.dir/vnd." + AUTHORITY + ".histogram";
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("The metrics are read-only.");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("The metrics are read-only.");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("The metrics are read-only.");
+    }
+}
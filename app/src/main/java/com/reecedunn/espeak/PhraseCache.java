@@ -0,0 +1,445 @@
+/*
+ * Copyright (C) 2013 Reece H. Dunn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.reecedunn.espeak;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A cache of synthesized phrase audio, and the events for that audio.
+ *
+ * The cache has a memory tier and a disk tier, each bounded by size and
+ * evicting the least recently used phrases first. The disk tier is written
+ * on a background thread, so adding a phrase does not hold up synthesis.
+ * Phrases are keyed by the text, the engine settings used to synthesize
+ * them, and the versions of the engine and voice data.
+ */
+public class PhraseCache {
+    private static final String TAG = PhraseCache.class.getSimpleName();
+
+    private static final long DEFAULT_MEMORY_BYTES = 4 * 1024 * 1024;
+    private static final long DEFAULT_DISK_BYTES = 32 * 1024 * 1024;
+
+    private static final String FILE_EXTENSION = ".phrase";
+
+    private static PhraseCache mInstance = null;
+
+    /** Writes the disk tier of every cache, in the order the phrases were added. */
+    private static final ExecutorService mDiskWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "PhraseCacheWriter");
+        }
+    });
+
+    private final File mDirectory;
+    private final long mMaxMemoryBytes;
+    private final long mMaxDiskBytes;
+    private final String mVersion;
+    private final String mDataVersion;
+
+    private final LinkedHashMap<String, Phrase> mMemory = new LinkedHashMap<String, Phrase>(16, 0.75f, true);
+    private long mMemoryBytes = 0;
+
+    /** The size of each file in the disk tier, in least recently used order; loaded on first use. */
+    private LinkedHashMap<String, Long> mDisk = null;
+    private long mDiskBytes = 0;
+
+    /** Incremented when the cache is cleared, so pending disk writes are discarded. */
+    private int mGeneration = 0;
+
+    private long mMemoryHitCount = 0;
+    private long mDiskHitCount = 0;
+    private long mMissCount = 0;
+    private long mEvictionCount = 0;
+
+    public PhraseCache(File directory, long maxMemoryBytes, long maxDiskBytes) {
+        this(directory, maxMemoryBytes, maxDiskBytes, "");
+    }
+
+    /**
+     * @param dataVersion The version of the voice data, so the phrases
+     *                    synthesized with older voice data are not used.
+     */
+    public PhraseCache(File directory, long maxMemoryBytes, long maxDiskBytes, String dataVersion) {
+        mDirectory = directory;
+        mMaxMemoryBytes = maxMemoryBytes;
+        mMaxDiskBytes = maxDiskBytes;
+        mVersion = SpeechSynthesis.getVersion();
+        mDataVersion = dataVersion;
+    }
+
+    /**
+     * Gets the phrase cache shared by the engines in this process. The cache
+     * is cleared when the voice data changes, e.g. when a dictionary is
+     * imported.
+     */
+    public static synchronized PhraseCache getInstance(Context context) {
+        if (mInstance == null) {
+            final File directory = context.getDir("phrases", Context.MODE_PRIVATE);
+            final PhraseCache cache = new PhraseCache(directory, DEFAULT_MEMORY_BYTES, DEFAULT_DISK_BYTES, getDataVersion(context));
+            context.getApplicationContext().registerReceiver(new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    cache.clear();
+                }
+            }, new IntentFilter(DownloadVoiceData.BROADCAST_LANGUAGES_UPDATED));
+            mInstance = cache;
+        }
+        return mInstance;
+    }
+
+    private static String getDataVersion(Context context) {
+        try {
+            return FileUtils.read(context.getResources().openRawResource(R.raw.espeakdata_version)).trim();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read the voice data version", e);
+            return "";
+        }
+    }
+
+    /**
+     * Gets the cache key for the text synthesized with the given settings.
+     */
+    public String getKey(String text, boolean isSsml, EngineSettings settings) {
+        final StringBuilder key = new StringBuilder();
+        key.append(mVersion).append('\n');
+        key.append(mDataVersion).append('\n');
+        key.append(settings.voice.identifier).append('\n');
+        key.append(settings.voice.name).append('\n');
+        key.append(settings.variant).append('\n');
+        key.append(settings.rate).append(',');
+        key.append(settings.pitch).append(',');
+        key.append(settings.pitchRange).append(',');
+        key.append(settings.volume).append(',');
+        key.append(settings.punctuationLevel).append('\n');
+        key.append(settings.punctuationCharacters).append('\n');
+        key.append(isSsml).append('\n');
+        key.append(text);
+
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.toString().getBytes("UTF-8"));
+            final StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+                hex.append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** The largest phrase that will be cached, in bytes. */
+    public long getMaxPhraseBytes() {
+        return mMaxMemoryBytes / 4;
+    }
+
+    /**
+     * Gets the audio and events for a phrase.
+     *
+     * @return The phrase, or null if the phrase is not cached.
+     */
+    public synchronized Phrase get(String key) {
+        Phrase phrase = mMemory.get(key);
+        if (phrase != null) {
+            ++mMemoryHitCount;
+            return phrase;
+        }
+
+        phrase = readFromDisk(key);
+        if (phrase != null) {
+            ++mDiskHitCount;
+            putInMemory(key, phrase);
+            return phrase;
+        }
+
+        ++mMissCount;
+        return null;
+    }
+
+    /**
+     * Adds the audio and events for a phrase to both tiers of the cache.
+     *
+     * @param audio  The 16-bit PCM audio.
+     * @param events The events, each stored as SpeechSynthesis.EVENT_RECORD_SIZE ints.
+     */
+    public synchronized void put(final String key, byte[] audio, int[] events) {
+        final Phrase phrase = new Phrase(audio, events);
+        if (audio.length == 0 || phrase.getSize() > getMaxPhraseBytes()) {
+            return;
+        }
+        putInMemory(key, phrase);
+
+        final int generation = mGeneration;
+        mDiskWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeToDisk(key, phrase, generation);
+            }
+        });
+    }
+
+    /**
+     * Waits for the phrases that have been added to be written to the disk
+     * tier.
+     */
+    public void awaitDiskWrites() {
+        try {
+            mDiskWriter.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    public synchronized void clear() {
+        ++mGeneration;
+        mMemory.clear();
+        mMemoryBytes = 0;
+
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDisk = null;
+        mDiskBytes = 0;
+    }
+
+    public synchronized long getMemoryHitCount() {
+        return mMemoryHitCount;
+    }
+
+    public synchronized long getDiskHitCount() {
+        return mDiskHitCount;
+    }
+
+    public synchronized long getHitCount() {
+        return mMemoryHitCount + mDiskHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    public synchronized long getMemoryBytes() {
+        return mMemoryBytes;
+    }
+
+    public synchronized long getDiskBytes() {
+        loadDiskIndex();
+        return mDiskBytes;
+    }
+
+    private void putInMemory(String key, Phrase phrase) {
+        final Phrase previous = mMemory.put(key, phrase);
+        if (previous != null) {
+            mMemoryBytes -= previous.getSize();
+        }
+        mMemoryBytes += phrase.getSize();
+
+        final Iterator<Map.Entry<String, Phrase>> entries = mMemory.entrySet().iterator();
+        while (mMemoryBytes > mMaxMemoryBytes && entries.hasNext()) {
+            final Map.Entry<String, Phrase> eldest = entries.next();
+            mMemoryBytes -= eldest.getValue().getSize();
+            entries.remove();
+            ++mEvictionCount;
+        }
+    }
+
+    private void loadDiskIndex() {
+        if (mDisk != null) {
+            return;
+        }
+
+        mDisk = new LinkedHashMap<String, Long>(16, 0.75f, true);
+        mDiskBytes = 0;
+
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File file : files) {
+            final String name = file.getName();
+            if (!name.endsWith(FILE_EXTENSION)) {
+                file.delete(); // An incomplete write.
+                continue;
+            }
+            mDisk.put(name.substring(0, name.length() - FILE_EXTENSION.length()), file.length());
+            mDiskBytes += file.length();
+        }
+    }
+
+    /**
+     * Reads a phrase file, which contains the number of event ints, the
+     * events, and then the audio.
+     */
+    private Phrase readFromDisk(String key) {
+        loadDiskIndex();
+        final Long length = mDisk.get(key);
+        if (length == null) {
+            return null;
+        }
+
+        final File file = new File(mDirectory, key + FILE_EXTENSION);
+        try {
+            final RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                final int eventInts = in.readInt();
+                if (eventInts < 0 || 4 + eventInts * 4L > in.length()) {
+                    throw new IOException("Invalid event count " + eventInts);
+                }
+                final byte[] eventData = new byte[eventInts * 4];
+                in.readFully(eventData);
+                final int[] events = new int[eventInts];
+                ByteBuffer.wrap(eventData).asIntBuffer().get(events);
+
+                final byte[] audio = new byte[(int)(in.length() - in.getFilePointer())];
+                in.readFully(audio);
+                file.setLastModified(System.currentTimeMillis());
+                return new Phrase(audio, events);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read the cached phrase " + key, e);
+            mDisk.remove(key);
+            mDiskBytes -= length;
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Writes a phrase to the disk tier on the disk writer thread. The file is
+     * written without holding the cache lock, and is only added to the disk
+     * tier if the cache has not been cleared since the phrase was added.
+     */
+    private void writeToDisk(String key, Phrase phrase, int generation) {
+        synchronized (this) {
+            loadDiskIndex();
+            if (generation != mGeneration || mDisk.containsKey(key)) {
+                return;
+            }
+        }
+
+        final File temp = new File(mDirectory, key + ".tmp");
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(phrase.events.length);
+                for (int value : phrase.events) {
+                    out.writeInt(value);
+                }
+                out.write(phrase.audio);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write the cached phrase " + key, e);
+            temp.delete();
+            return;
+        }
+
+        synchronized (this) {
+            if (generation != mGeneration || !temp.renameTo(new File(mDirectory, key + FILE_EXTENSION))) {
+                temp.delete();
+                return;
+            }
+
+            final long size = 4 + phrase.getSize(); // The event count, events and audio.
+            mDisk.put(key, size);
+            mDiskBytes += size;
+
+            final Iterator<Map.Entry<String, Long>> entries = mDisk.entrySet().iterator();
+            while (mDiskBytes > mMaxDiskBytes && entries.hasNext()) {
+                final Map.Entry<String, Long> eldest = entries.next();
+                new File(mDirectory, eldest.getKey() + FILE_EXTENSION).delete();
+                mDiskBytes -= eldest.getValue();
+                entries.remove();
+                ++mEvictionCount;
+            }
+        }
+    }
+
+    /**
+     * The audio of a phrase, and the events for that audio.
+     */
+    public static class Phrase {
+        /** The 16-bit PCM audio. */
+        public final byte[] audio;
+
+        /**
+         * The events, each stored as SpeechSynthesis.EVENT_RECORD_SIZE ints,
+         * with their sample offsets from the start of the audio.
+         */
+        public final int[] events;
+
+        public Phrase(byte[] audio, int[] events) {
+            this.audio = audio;
+            this.events = events;
+        }
+
+        /** The memory used by the phrase, in bytes. */
+        public long getSize() {
+            return audio.length + events.length * 4L;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2013 Reece H. Dunn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.reecedunn.espeak;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Renders BatchRenderService jobs to WAV files.
+ *
+ * The eSpeak engine is global to a process, so each worker is declared in
+ * its own process (one subclass per process) and renders one job at a time
+ * with its own SpeechSynthesis object.
+ */
+public class RenderWorkerService extends Service {
+    private static final String TAG = "eSpeakRenderWorker";
+
+    /** Renders the job in the message data. arg1 is the job index, and the result is sent to replyTo. */
+    static final int MSG_RENDER_JOB = 1;
+
+    /** The result of a job. arg1 is the job index, and the data holds the KEY_RESULT_* values. */
+    static final int MSG_JOB_RESULT = 2;
+
+    private HandlerThread mThread;
+    private Messenger mMessenger;
+    private SpeechSynthesis mEngine = null;
+    private Map<String, Voice> mVoices = null;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mMessenger = new Messenger(new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what != MSG_RENDER_JOB) {
+                    super.handleMessage(msg);
+                    return;
+                }
+
+                final Message reply = Message.obtain(null, MSG_JOB_RESULT, msg.arg1, 0);
+                reply.setData(render(msg.getData()));
+                try {
+                    msg.replyTo.send(reply);
+                } catch (RemoteException e) {
+                    Log.w(TAG, "The batch service has gone away", e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mMessenger.getBinder();
+    }
+
+    @Override
+    public void onDestroy() {
+        final Handler handler = new Handler(mThread.getLooper());
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mEngine != null) {
+                    mEngine.release();
+                    mEngine = null;
+                }
+            }
+        });
+        mThread.quitSafely();
+        super.onDestroy();
+    }
+
+    private Bundle render(Bundle job) {
+        final Bundle result = new Bundle();
+        final long startedAt = System.nanoTime();
+        try {
+            if (mEngine == null) {
+                mEngine = new SpeechSynthesis(this, null);
+                mVoices = new HashMap<String, Voice>();
+                for (Voice voice : mEngine.getAvailableVoices()) {
+                    mVoices.put(voice.name, voice);
+                }
+                result.putLong(BatchRenderService.KEY_RESULT_ENGINE_MILLIS, (System.nanoTime() - startedAt) / 1000000);
+            }
+
+            final String voiceName = job.getString(BatchRenderService.KEY_VOICE);
+            final Voice voice = mVoices.get(voiceName);
+            if (voice == null) {
+                throw new IOException("Unknown voice: " + voiceName);
+            }
+            if (!DictionaryCache.prepare(this, voice)) {
+                throw new IOException("The dictionary for " + voiceName + " could not be installed");
+            }
+
+            final EngineSettings settings = new EngineSettings(voice,
+                    VoiceVariant.parseVoiceVariant(job.getString(BatchRenderService.KEY_VARIANT, VoiceVariant.MALE)),
+                    job.getInt(BatchRenderService.KEY_RATE, mEngine.Rate.getDefaultValue()),
+                    job.getInt(BatchRenderService.KEY_PITCH, mEngine.Pitch.getDefaultValue()),
+                    job.getInt(BatchRenderService.KEY_PITCH_RANGE, mEngine.PitchRange.getDefaultValue()),
+                    job.getInt(BatchRenderService.KEY_VOLUME, mEngine.Volume.getDefaultValue()),
+                    job.getInt(BatchRenderService.KEY_PUNCTUATION_LEVEL, mEngine.Punctuation.getDefaultValue()),
+                    job.getString(BatchRenderService.KEY_PUNCTUATION_CHARACTERS));
+
+            final SpeechSynthesis.RenderResult rendered = mEngine.renderToFile(
+                    job.getString(BatchRenderService.KEY_TEXT),
+                    job.getBoolean(BatchRenderService.KEY_SSML, false),
+                    settings,
+                    new File(job.getString(BatchRenderService.KEY_OUTPUT_PATH)));
+
+            result.putBoolean(BatchRenderService.KEY_RESULT_SUCCESS, true);
+            result.putLong(BatchRenderService.KEY_RESULT_AUDIO_MILLIS, rendered.audioMillis);
+            result.putLong(BatchRenderService.KEY_RESULT_RENDER_MILLIS, rendered.renderMillis);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Failed to render job", e);
+            result.putBoolean(BatchRenderService.KEY_RESULT_SUCCESS, false);
+            result.putString(BatchRenderService.KEY_RESULT_ERROR, e.toString());
+            result.putLong(BatchRenderService.KEY_RESULT_RENDER_MILLIS, (System.nanoTime() - startedAt) / 1000000);
+        }
+        return result;
+    }
+
+    public static class Worker0 extends RenderWorkerService {
+    }
+
+    public static class Worker1 extends RenderWorkerService {
+    }
+
+    public static class Worker2 extends RenderWorkerService {
+    }
+
+    public static class Worker3 extends RenderWorkerService {
+    }
+}
@@ -25,24 +25,37 @@
 package com.reecedunn.espeak;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.Configuration;
 import android.content.res.Resources;
+import android.os.Bundle;
 import android.util.DisplayMetrics;
 import android.util.Log;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.MissingResourceException;
-import android.media.AudioTrack;
-import android.media.AudioFormat;
-import android.media.AudioManager;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
 public class SpeechSynthesis {
     private static final String TAG = SpeechSynthesis.class.getSimpleName();
-    private AudioTrack track;
     public static final int GENDER_UNSPECIFIED = 0;
     public static final int GENDER_MALE = 1;
     public static final int GENDER_FEMALE = 2;
@@ -54,6 +67,34 @@ public class SpeechSynthesis {
     public static final int CHANNEL_COUNT_MONO = 1;
     public static final int FORMAT_PCM_S16 = 2;
 
+    /** The size of the audio buffer, and so the largest chunk of audio delivered at a time. */
+    private static final int AUDIO_BUFFER_MILLISECONDS = 500;
+
+    /** Start of a word. */
+    public static final int EVENT_WORD = 1;
+
+    /** Start of a sentence. */
+    public static final int EVENT_SENTENCE = 2;
+
+    /** An SSML mark. */
+    public static final int EVENT_MARK = 3;
+
+    /** Start of a phoneme. */
+    public static final int EVENT_PHONEME = 7;
+
+    /**
+     * The number of ints in each event record. A record contains the event
+     * type, the 1-based code point position of the event in the text, the
+     * length of the word in code points, and the sample offset of the event
+     * from the start of the utterance.
+     */
+    public static final int EVENT_RECORD_SIZE = 4;
+
+    /** The maximum number of events delivered with a chunk of audio. */
+    private static final int EVENT_BUFFER_EVENTS = 256;
+
+    private static final int[] NO_EVENTS = new int[0];
+
     static {
         System.loadLibrary("ttsespeak");
 
@@ -64,9 +105,89 @@ public class SpeechSynthesis {
     private final SynthReadyCallback mCallback;
     private final String mDatapath;
 
-    private boolean mInitialized = false;
+    private volatile boolean mInitialized = false;
     private static int mVoiceCount = 0;
     private int mSampleRate = 0;
+    private ByteBuffer mAudioBuffer = null;
+    private int[] mEventBuffer = null;
+
+    /** Plays the audio when there is no callback; created on first use on the synthesis thread. */
+    private volatile AudioOutput mAudioOutput = null;
+
+    /** The engine whose audio buffer is registered with the process-global native engine; only used on the synthesis thread. */
+    private static SpeechSynthesis mAudioBufferOwner = null;
+
+    /**
+     * The eSpeak engine is process-global, so every native call except
+     * nativeStop is made on this thread.
+     */
+    private static final EngineThread mSynthesisThread = EngineThread.start("eSpeakSynthesis");
+
+    /** The parameter values set since they were last applied, and a bit for each parameter id. */
+    private final AtomicIntegerArray mPendingValues = new AtomicIntegerArray(6);
+    private final AtomicInteger mPendingParameters = new AtomicInteger(0);
+
+    private final Set<SynthesisTask> mPendingTasks = Collections.newSetFromMap(new ConcurrentHashMap<SynthesisTask, Boolean>());
+    private volatile SynthesisTask mActiveTask = null;
+
+    /** The chunk schedule applied to the native engine; only used on the synthesis thread. */
+    private static ChunkSchedule mChunkSchedule = ChunkSchedule.DEFAULT;
+
+    /** The size of the buffer that plain text is encoded into before it is synthesized. */
+    private static final int TEXT_BUFFER_SIZE = 16384;
+
+    /** Longer texts are not looked up in the phrase cache. */
+    private static final int PHRASE_CACHE_MAX_TEXT_LENGTH = 1024;
+
+    /** Only used on the synthesis thread. */
+    private ClauseEncoder mClauseEncoder = null;
+
+    /**
+     * The audio recorded for the phrase cache, which is reused by each
+     * request and grows up to the largest phrase the cache will hold. Only
+     * used on the synthesis thread.
+     */
+    private byte[] mRecordingBuffer = null;
+    private int[] mRecordedEvents = null;
+
+    /** The default memory used to keep the dictionaries of recently used voices loaded. */
+    public static final int DEFAULT_DICTIONARY_CACHE_SIZE = 4 * 1024 * 1024;
+
+    private static volatile int mDictionaryCacheSize = DEFAULT_DICTIONARY_CACHE_SIZE;
+
+    /** Whether the native engine is reading the voice data archive. Only used on the synthesis thread. */
+    private static boolean mDataArchiveOpen = false;
+
+    /**
+     * The settings last applied to the process-global native engine, or null
+     * if the engine state is unknown. Only the fields that differ from these
+     * are sent to the native engine by applySettings.
+     */
+    private static volatile EngineSettings mAppliedSettings = null;
+
+    /** The engine's default parameter values, indexed by the parameter id. */
+    private static final int[] mDefaultValues = new int[] {
+        Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE,
+        Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE,
+    };
+
+    private static final int APPLY_VOICE_BY_NAME = 0x01;
+    private static final int APPLY_VOICE_BY_PROPERTIES = 0x02;
+    private static final int APPLY_RATE = 0x04;
+    private static final int APPLY_PITCH = 0x08;
+    private static final int APPLY_PITCH_RANGE = 0x10;
+    private static final int APPLY_VOLUME = 0x20;
+    private static final int APPLY_PUNCTUATION = 0x40;
+    private static final int APPLY_PUNCTUATION_CHARACTERS = 0x80;
+
+    /** The nativeApply parameters: the APPLY_* mask, gender, age, rate, pitch, pitch range, volume and punctuation. */
+    private static final int[] mApplyParams = new int[8];
+
+    private volatile PhraseCache mPhraseCache = null;
+
+    private volatile long mStopRequestedAt = 0;
+    private volatile long mLastStopLatency = -1;
+    private volatile long mLastPreloadLatency = -1;
 
     public SpeechSynthesis(Context context, SynthReadyCallback callback) {
         CheckVoiceData.installVoiceDataIfMissing(context); // ensure data installed
@@ -92,7 +213,13 @@ public class SpeechSynthesis {
 
         mDatapath = resolvedPath; // ✅ single assignment to final field
 
-        attemptInit();
+        mSynthesisThread.callFirst(new Callable<Void>() {
+            @Override
+            public Void call() {
+                attemptInit();
+                return null;
+            }
+        });
     }
 
 
@@ -136,10 +263,29 @@ public class SpeechSynthesis {
         }
     }
 
+    /**
+     * Gets the voices supported by eSpeak. The voices are read from the voice
+     * catalogue when it matches the installed voice data, to avoid eSpeak
+     * parsing every voice and language file.
+     */
     public List<Voice> getAvailableVoices() {
-        final List<Voice> voices = new LinkedList<Voice>();
-        final String[] results = nativeGetAvailableVoices();
-        mVoiceCount = results.length / 4;
+        VoiceCatalogue.Entry catalogue = VoiceCatalogue.read(mContext);
+        if (catalogue == null) {
+            catalogue = scanAvailableVoices();
+            VoiceCatalogue.write(mContext, catalogue);
+        }
+        mVoiceCount = catalogue.voiceCount;
+        return catalogue.voices;
+    }
+
+    private VoiceCatalogue.Entry scanAvailableVoices() {
+        final List<Voice> voices = new ArrayList<Voice>();
+        final String[] results = mSynthesisThread.callFirst(new Callable<String[]>() {
+            @Override
+            public String[] call() {
+                return nativeGetAvailableVoices();
+            }
+        });
 
         for (int i = 0; i < results.length; i += 4) {
             final String name = results[i];
@@ -180,23 +326,63 @@ public class SpeechSynthesis {
             }
         }
 
-        return voices;
+        return new VoiceCatalogue.Entry(voices, results.length / 4);
     }
 
-    public void setVoice(Voice voice, VoiceVariant variant) {
-        // NOTE: espeak_SetVoiceByProperties does not support specifying the
-        // voice variant (e.g. klatt), but espeak_SetVoiceByName does.
-        if (variant.variant == null) {
-            nativeSetVoiceByProperties(voice.name, variant.gender, variant.age);
-        } else {
-            nativeSetVoiceByName(voice.identifier + "+" + variant.variant);
-        }
+    public void setVoice(final Voice voice, final VoiceVariant variant) {
+        mSynthesisThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                mAppliedSettings = null;
+                DictionaryCache.prepare(mContext, voice);
+                // NOTE: espeak_SetVoiceByProperties does not support specifying the
+                // voice variant (e.g. klatt), but espeak_SetVoiceByName does.
+                if (variant.variant == null) {
+                    nativeSetVoiceByProperties(voice.name, variant.gender, variant.age);
+                } else {
+                    nativeSetVoiceByName(voice.identifier + "+" + variant.variant);
+                }
+            }
+        });
     }
 
-    public void setPunctuationCharacters(String characters) {
-        nativeSetPunctuationCharacters(characters);
+    public void setVoiceByName(final String name) {
+        mSynthesisThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                mAppliedSettings = null;
+                nativeSetVoiceByName(name);
+            }
+        });
     }
 
+    public void setPunctuationCharacters(final String characters) {
+        mSynthesisThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                mAppliedSettings = null;
+                nativeSetPunctuationCharacters(characters);
+            }
+        });
+    }
+
+    /**
+     * Applies the latest value of each parameter set since the last time
+     * this ran, so a burst of changes makes one native call per parameter.
+     */
+    private final Runnable mApplyPendingParameters = new Runnable() {
+        @Override
+        public void run() {
+            final int pending = mPendingParameters.getAndSet(0);
+            mAppliedSettings = null;
+            for (int id = 0; id < mPendingValues.length(); ++id) {
+                if ((pending & (1 << id)) != 0) {
+                    nativeSetParameter(id, mPendingValues.get(id));
+                }
+            }
+        }
+    };
+
     /** Don't announce any punctuation characters. */
     public static final int PUNCT_NONE = 0;
 
@@ -235,19 +421,56 @@ public class SpeechSynthesis {
         }
 
         public int getDefaultValue() {
-            return nativeGetParameter(id, 0);
+            // The defaults are fixed once the engine is created, so they are
+            // only read from eSpeak once.
+            int value = mDefaultValues[id];
+            if (value == Integer.MIN_VALUE) {
+                value = mSynthesisThread.callFirst(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        return nativeGetParameter(id, 0);
+                    }
+                });
+                if (mInitialized) {
+                    mDefaultValues[id] = value;
+                }
+            }
+            return value;
         }
 
+        /**
+         * Gets the current value. If the engine has not applied the last
+         * value that was set, this waits for the synthesis thread.
+         */
         public int getValue() {
-            return nativeGetParameter(id, 1);
+            if ((mPendingParameters.get() & (1 << id)) != 0) {
+                return mPendingValues.get(id);
+            }
+            return mSynthesisThread.callFirst(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return nativeGetParameter(id, 1);
+                }
+            });
         }
 
         public void setValue(int value, int scale) {
             setValue((value * scale) / 100);
         }
 
+        /**
+         * Sets the value on the synthesis thread. The value is applied before
+         * the next request that is queued after this call.
+         */
         public void setValue(int value) {
-            nativeSetParameter(id, value);
+            mPendingValues.set(id, value);
+            int pending;
+            do {
+                pending = mPendingParameters.get();
+            } while (!mPendingParameters.compareAndSet(pending, pending | (1 << id)));
+            if (pending == 0) {
+                mSynthesisThread.execute(mApplyPendingParameters);
+            }
         }
 
         public UnitType getUnitType() {
@@ -270,75 +493,601 @@ public class SpeechSynthesis {
     /** Which punctuation characters to announce. */
     public final Parameter Punctuation = new Parameter(5, 0, 2, UnitType.Punctuation);
 
+    /**
+     * Synthesizes the text, blocking the calling thread until it is complete.
+     */
     public void synthesize(String text, boolean isSsml) {
-        nativeSynthesize(text, isSsml);
+        submit(text, isSsml, null, null).await();
+    }
+
+    /**
+     * Queues the text for synthesis on the engine's synthesis thread.
+     *
+     * Plain text is read from the CharSequence a piece at a time while it is
+     * synthesized, so it must not be modified until the request completes.
+     *
+     * @param text     The text or SSML to synthesize.
+     * @param isSsml   Whether the text is an SSML document.
+     * @param settings The voice and parameters to use, or null to keep the current values.
+     * @param callback The callback to send the audio to, or null to use the engine's callback.
+     * @return A handle that can be used to wait for or cancel the request.
+     */
+    public SynthesisTask submit(CharSequence text, boolean isSsml, EngineSettings settings, SynthReadyCallback callback) {
+        return submit(text, isSsml, settings, ChunkSchedule.DEFAULT, callback);
+    }
+
+    /**
+     * Queues the text for synthesis on the engine's synthesis thread.
+     *
+     * @param schedule The sizes of the audio chunks delivered to the callback.
+     * @see #submit(CharSequence, boolean, EngineSettings, SynthReadyCallback)
+     */
+    public SynthesisTask submit(CharSequence text, boolean isSsml, EngineSettings settings, ChunkSchedule schedule, SynthReadyCallback callback) {
+        final SynthesisTask task = new SynthesisTask(text, isSsml, settings, schedule, callback);
+        mPendingTasks.add(task);
+        mSynthesisThread.execute(task);
+        return task;
+    }
+
+    public SynthesisTask submit(CharSequence text, boolean isSsml) {
+        return submit(text, isSsml, null, null);
+    }
+
+    /**
+     * Synthesizes the text to a WAV file, blocking the calling thread until
+     * it is complete. The audio is written straight from the native audio
+     * buffer to the file, and is not played.
+     *
+     * @param text     The text or SSML to synthesize.
+     * @param isSsml   Whether the text is an SSML document.
+     * @param settings The voice and parameters to use, or null to keep the current values.
+     * @param file     The WAV file to write.
+     * @return The timing information for the rendered audio.
+     * @throws IOException If the file could not be written, or synthesis failed or was stopped.
+     */
+    public RenderResult renderToFile(CharSequence text, boolean isSsml, EngineSettings settings, File file) throws IOException {
+        final long startedAt = System.nanoTime();
+        final FileRenderer renderer = new FileRenderer(new WavWriter(file, mSampleRate, getChannelCount(), FORMAT_PCM_S16));
+        final boolean completed;
+        try {
+            renderer.mTask = submit(text, isSsml, settings, ChunkSchedule.BULK, renderer);
+            completed = renderer.mTask.await();
+        } finally {
+            renderer.mWriter.close();
+        }
+
+        if (renderer.mError != null || !completed) {
+            file.delete();
+            if (renderer.mError != null) {
+                throw renderer.mError;
+            }
+            throw new IOException("Failed to render the text to " + file);
+        }
+
+        final RenderResult result = new RenderResult(renderer.mWriter.getDurationMillis(), (System.nanoTime() - startedAt) / 1000000);
+        Log.i(TAG, "Rendered " + result.audioMillis + "ms of audio in " + result.renderMillis + "ms (real-time factor " + result.getRealTimeFactor() + ")");
+        return result;
+    }
+
+    private boolean synthesizeNow(SynthesisTask task) {
+        final PhraseCache cache = mPhraseCache;
+        final SynthesisMetrics metrics = SynthesisMetrics.getInstance();
+        final long startedAt = System.nanoTime();
+        metrics.queueWait.record((startedAt - task.mSubmittedAt) / 1000);
+
+        boolean synthesized = false;
+        try {
+            if (cache != null && task.mSettings != null && task.mText.length() <= PHRASE_CACHE_MAX_TEXT_LENGTH) {
+                task.mCacheKey = cache.getKey(task.mText.toString(), task.mIsSsml, task.mSettings);
+                final PhraseCache.Phrase phrase = cache.get(task.mCacheKey);
+                if (phrase != null) {
+                    return replay(task, phrase);
+                }
+                task.mIsRecording = true;
+                task.mRecordingLimit = cache.getMaxPhraseBytes();
+            }
+
+            final long setupStartedAt = System.nanoTime();
+            if (task.mSettings != null) {
+                applySettings(task.mSettings);
+            }
+            if (!task.mSchedule.equals(mChunkSchedule)) {
+                nativeSetChunkSchedule(task.mSchedule.firstChunkMillis, task.mSchedule.chunkMillis);
+                mChunkSchedule = task.mSchedule;
+            }
+            claimAudioBuffer();
+            metrics.setup.record((System.nanoTime() - setupStartedAt) / 1000);
+
+            if (task.mIsSsml) {
+                // SSML cannot be split without parsing the markup.
+                synthesized = nativeSynthesize(task.mText.toString(), true);
+            } else {
+                synthesized = synthesizeText(task);
+            }
+            return synthesized;
+        } finally {
+            final long stopRequestedAt = mStopRequestedAt;
+            if (stopRequestedAt != 0 && task.isCancelled()) {
+                mLastStopLatency = System.nanoTime() - stopRequestedAt;
+                mStopRequestedAt = 0;
+                metrics.stop.record(mLastStopLatency / 1000);
+            }
+
+            final SynthReadyCallback callback = task.getCallback();
+            if (callback != null) {
+                callback.onSynthDataComplete();
+            } else {
+                final AudioOutput output = getAudioOutput();
+                if (output != null) {
+                    output.endOfUtterance();
+                }
+            }
+
+            if (synthesized && task.mIsRecording && task.mRecordingLength > 0 && !task.isCancelled()) {
+                cache.put(task.mCacheKey,
+                        Arrays.copyOf(mRecordingBuffer, task.mRecordingLength),
+                        (task.mRecordedEventsLength == 0) ? NO_EVENTS : Arrays.copyOf(mRecordedEvents, task.mRecordedEventsLength));
+            }
+            task.mIsRecording = false;
+
+            if (!task.isCancelled()) {
+                final long elapsed = System.nanoTime() - startedAt;
+                metrics.synthesisTime.record(elapsed / 1000000);
+                metrics.bytesDelivered.record(task.mSamplesDelivered * FORMAT_PCM_S16);
+                if (task.mSamplesDelivered > 0) {
+                    metrics.realTimeFactor.record(elapsed * mSampleRate / (task.mSamplesDelivered * 1000000));
+                }
+            }
+        }
+    }
+
+    /**
+     * Synthesizes plain text a piece at a time, so the text is not copied or
+     * encoded as a whole.
+     */
+    private boolean synthesizeText(SynthesisTask task) {
+        if (mClauseEncoder == null) {
+            mClauseEncoder = new ClauseEncoder(TEXT_BUFFER_SIZE);
+        }
+
+        final ClauseEncoder encoder = mClauseEncoder;
+        encoder.reset(task.mText);
+        try {
+            boolean isContinuation = false;
+            while (encoder.next()) {
+                if (task.isCancelled()) {
+                    return false;
+                }
+
+                // eSpeak reports the event positions relative to each piece.
+                task.mTextPositionBase = encoder.getCodePointOffset();
+                task.mSampleBase = task.mSamplesDelivered;
+                if (!nativeSynthesizeBuffer(encoder.getBuffer(), encoder.getLength(), isContinuation, !encoder.isLast())) {
+                    return false;
+                }
+                isContinuation = true;
+            }
+            return true;
+        } finally {
+            encoder.reset(null);
+        }
+    }
+
+    /**
+     * Plays cached audio through the same path as synthesized audio. The
+     * events are delivered before the chunk of audio they occur in.
+     */
+    private boolean replay(SynthesisTask task, PhraseCache.Phrase phrase) {
+        final SynthReadyCallback callback = task.getCallback();
+        final byte[] audio = phrase.audio;
+        final int[] events = phrase.events;
+        final int chunkSize = (mAudioBuffer != null) ? mAudioBuffer.capacity() : audio.length;
+        int event = 0;
+        for (int offset = 0; offset < audio.length; offset += chunkSize) {
+            if (task.isCancelled()) {
+                return false;
+            }
+
+            final int length = Math.min(chunkSize, audio.length - offset);
+            final ByteBuffer audioData = ByteBuffer.wrap(audio, offset, length);
+            task.onAudioDelivered(length);
+            if (callback != null) {
+                // Events at the end of the audio are delivered with the last chunk.
+                final boolean isLast = offset + length == audio.length;
+                final int endSample = (offset + length) / FORMAT_PCM_S16;
+                int count = 0;
+                while (event + count < events.length / EVENT_RECORD_SIZE
+                        && (isLast || events[(event + count) * EVENT_RECORD_SIZE + 3] < endSample)) {
+                    ++count;
+                }
+                replayEvents(callback, events, event, count);
+                event += count;
+
+                callback.onSynthDataReady(audioData, offset, length);
+            } else {
+                final AudioOutput output = obtainAudioOutput();
+                if (output == null || !output.write(audioData, length)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Delivers cached events through the event buffer, in batches of the
+     * size delivered by the native engine.
+     */
+    private void replayEvents(SynthReadyCallback callback, int[] events, int first, int count) {
+        final int[] buffer = (mEventBuffer != null) ? mEventBuffer : new int[EVENT_BUFFER_EVENTS * EVENT_RECORD_SIZE];
+        while (count > 0) {
+            final int batch = Math.min(count, EVENT_BUFFER_EVENTS);
+            System.arraycopy(events, first * EVENT_RECORD_SIZE, buffer, 0, batch * EVENT_RECORD_SIZE);
+            callback.onSynthEvents(buffer, batch);
+            first += batch;
+            count -= batch;
+        }
     }
 
+    /**
+     * Sets the cache used to replay phrases synthesized with the same text
+     * and settings. Only requests with EngineSettings are cached.
+     *
+     * @param cache The phrase cache, or null to disable caching.
+     */
+    public void setPhraseCache(PhraseCache cache) {
+        mPhraseCache = cache;
+    }
+
+    public PhraseCache getPhraseCache() {
+        return mPhraseCache;
+    }
+
+    /**
+     * Applies the settings to the native engine in a single call, skipping
+     * any that have not changed since the last request.
+     */
+    private void applySettings(EngineSettings settings) {
+        final EngineSettings applied = mAppliedSettings;
+        final int[] params = mApplyParams;
+        int mask = 0;
+        String voiceName = null;
+
+        // Changing the voice can reset the other parameters, so reapply them all.
+        final boolean applyAll = applied == null || !settings.hasSameVoice(applied);
+        if (applyAll) {
+            DictionaryCache.prepare(mContext, settings.voice);
+            if (settings.variant.variant == null) {
+                mask |= APPLY_VOICE_BY_PROPERTIES;
+                voiceName = settings.voice.name;
+                params[1] = settings.variant.gender;
+                params[2] = settings.variant.age;
+            } else {
+                mask |= APPLY_VOICE_BY_NAME;
+                voiceName = settings.voice.identifier + "+" + settings.variant.variant;
+            }
+        }
+        if (applyAll || settings.rate != applied.rate) {
+            mask |= APPLY_RATE;
+            params[3] = settings.rate;
+        }
+        if (applyAll || settings.pitch != applied.pitch) {
+            mask |= APPLY_PITCH;
+            params[4] = settings.pitch;
+        }
+        if (applyAll || settings.pitchRange != applied.pitchRange) {
+            mask |= APPLY_PITCH_RANGE;
+            params[5] = settings.pitchRange;
+        }
+        if (applyAll || settings.volume != applied.volume) {
+            mask |= APPLY_VOLUME;
+            params[6] = settings.volume;
+        }
+        if (applyAll || settings.punctuationLevel != applied.punctuationLevel) {
+            mask |= APPLY_PUNCTUATION;
+            params[7] = settings.punctuationLevel;
+        }
+        if (applyAll || !settings.hasSamePunctuationCharacters(applied)) {
+            mask |= APPLY_PUNCTUATION_CHARACTERS;
+        }
+
+        if (mask == 0) {
+            return;
+        }
+
+        params[0] = mask;
+        if (nativeApply(params, voiceName, settings.punctuationCharacters)) {
+            mAppliedSettings = settings;
+        } else {
+            Log.e(TAG, "Failed to apply the engine settings");
+            mAppliedSettings = null;
+        }
+    }
+
+    private void claimAudioBuffer() {
+        if (mAudioBufferOwner == this) {
+            return;
+        }
+        if (mAudioBuffer != null && nativeSetAudioBuffer(mAudioBuffer)) {
+            nativeSetEventBuffer(mEventBuffer);
+            mAudioBufferOwner = this;
+        } else if (mAudioBufferOwner != null) {
+            nativeSetAudioBuffer(null);
+            nativeSetEventBuffer(null);
+            mAudioBufferOwner = null;
+        }
+    }
+
+    /**
+     * Sets the memory used to keep the dictionaries of recently used voices
+     * loaded, so switching back to one of those voices does not read its
+     * dictionary from storage. A size of 0 only keeps the dictionaries of the
+     * current voice.
+     *
+     * @param bytes The cache size in bytes.
+     */
+    public static void setDictionaryCacheSize(final int bytes) {
+        mDictionaryCacheSize = bytes;
+        mSynthesisThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                nativeSetDictionaryCacheSize(bytes);
+            }
+        });
+    }
+
+    public static int getDictionaryCacheSize() {
+        return mDictionaryCacheSize;
+    }
+
+    /**
+     * Stops the current request and cancels the queued requests. This does
+     * not wait for the synthesis thread: the queued requests are removed
+     * from its queue, and nativeStop only marks the current synthesis as
+     * aborted, so it is safe to call from any thread.
+     */
     public void stop() {
+        if (mActiveTask != null) {
+            mStopRequestedAt = System.nanoTime();
+        }
+
+        for (SynthesisTask task : mPendingTasks) {
+            task.cancel(false);
+        }
         nativeStop();
+
+        final AudioOutput output = getAudioOutput();
+        if (output != null) {
+            output.flush();
+        }
+    }
+
+    /**
+     * Gets the time between the last stop request and the synthesis thread
+     * producing no more audio.
+     *
+     * @return The latency in microseconds, or -1 if no synthesis has been stopped.
+     */
+    public long getLastStopLatency() {
+        final long latency = mLastStopLatency;
+        return (latency < 0) ? -1 : latency / 1000;
+    }
+
+    /**
+     * Loads the voice on the synthesis thread, so that the next request that
+     * uses these settings does not read the voice, its dictionary or its
+     * phoneme tables from storage. Nothing is done if the voice is already
+     * loaded.
+     */
+    public void preload(final EngineSettings settings) {
+        mSynthesisThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                final EngineSettings applied = mAppliedSettings;
+                if (!mInitialized || (applied != null && settings.hasSameVoice(applied))) {
+                    return;
+                }
+
+                final long startedAt = System.nanoTime();
+                applySettings(settings);
+                mLastPreloadLatency = System.nanoTime() - startedAt;
+                SynthesisMetrics.getInstance().preload.record(mLastPreloadLatency / 1000);
+                Log.i(TAG, "Preloaded " + settings.voice.name + " in " + (mLastPreloadLatency / 1000) + "us");
+            }
+        });
+    }
+
+    /**
+     * Gets the time taken by the last preload request to load its voice.
+     *
+     * @return The latency in microseconds, or -1 if no voice has been preloaded.
+     */
+    public long getLastPreloadLatency() {
+        final long latency = mLastPreloadLatency;
+        return (latency < 0) ? -1 : latency / 1000;
+    }
+
+    /**
+     * Releases the native references held for this engine. The engine must
+     * not be used after this is called.
+     */
+    public void release() {
+        stop();
+        mSynthesisThread.call(new Callable<Void>() {
+            @Override
+            public Void call() {
+                if (mAudioBufferOwner == SpeechSynthesis.this) {
+                    nativeSetAudioBuffer(null);
+                    nativeSetEventBuffer(null);
+                    mAudioBufferOwner = null;
+                }
+                nativeDestroy();
+                mAudioBuffer = null;
+                mEventBuffer = null;
+                mRecordingBuffer = null;
+                mRecordedEvents = null;
+                mInitialized = false;
+
+                final AudioOutput output = mAudioOutput;
+                mAudioOutput = null;
+                if (output != null) {
+                    output.release();
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Receives audio from the native audio buffer, and the events for that
+     * audio from the native event buffer.
+     *
+     * @return true to continue synthesis, false to abort it.
+     */
+    public boolean nativeSynthCallback(int offset, int length, int eventCount) {
+        final SynthesisTask task = mActiveTask;
+        if (task != null && task.isCancelled()) {
+            return false;
+        }
+
+        final SynthReadyCallback callback = (task != null) ? task.getCallback() : mCallback;
+        if (eventCount > 0) {
+            if (task != null) {
+                task.offsetEvents(mEventBuffer, eventCount);
+                if (task.mIsRecording) {
+                    task.recordEvents(mEventBuffer, eventCount);
+                }
+            }
+            if (callback != null) {
+                callback.onSynthEvents(mEventBuffer, eventCount);
+            }
+        }
+        if (task != null) {
+            task.onAudioDelivered(length);
+        }
+        if (length == 0) {
+            return true;
+        }
+
+        final ByteBuffer audioData = mAudioBuffer;
+        audioData.clear();
+        audioData.limit(offset + length);
+        audioData.position(offset);
+        if (task != null && task.mIsRecording) {
+            task.record(audioData, length);
+            audioData.position(offset);
+        }
+
+        if (callback != null) {
+            callback.onSynthDataReady(audioData, offset, length);
+            return true;
+        }
+
+        final AudioOutput output = obtainAudioOutput();
+        return output != null && output.write(audioData, length);
     }
 
     public void nativeSynthCallback(byte[] audioData) {
         Log.v("eSpeakTTS", "nativeSynthCallback called, bytes=" + (audioData == null ? "null" : audioData.length));
         if (audioData == null || audioData.length == 0) return;
 
-        // Reuse the correct sample rate from native side
-        int rate = (mSampleRate > 0) ? mSampleRate : 22050;
-
-        if (track == null) {
-            int minBuf = AudioTrack.getMinBufferSize(
-                    rate,
-                    AudioFormat.CHANNEL_OUT_MONO,
-                    AudioFormat.ENCODING_PCM_16BIT
-            );
-            int bufferSize = Math.max(minBuf, 4096);
-
-            track = new AudioTrack(
-                    AudioManager.STREAM_MUSIC,
-                    rate,
-                    AudioFormat.CHANNEL_OUT_MONO,
-                    AudioFormat.ENCODING_PCM_16BIT,
-                    bufferSize,
-                    AudioTrack.MODE_STREAM
-            );
+        final AudioOutput output = obtainAudioOutput();
+        if (output == null) return;
 
-            try {
-                track.play();
-            } catch (Throwable t) {
-                Log.e(TAG, "AudioTrack.play() failed", t);
-                return;
-            }
+        output.write(ByteBuffer.wrap(audioData), audioData.length);
+    }
 
-            Log.i(TAG, "AudioTrack initialized at " + rate + " Hz, buffer=" + bufferSize);
-        }
+    /**
+     * Gets the playback stage used when there is no callback, for reading its
+     * underrun and latency counters.
+     *
+     * @return The audio output, or null if no audio has been played.
+     */
+    public AudioOutput getAudioOutput() {
+        return mAudioOutput;
+    }
 
-        try {
-            track.write(audioData, 0, audioData.length);
-        } catch (Throwable t) {
-            Log.e(TAG, "AudioTrack.write() failed", t);
+    /** Only used on the synthesis thread. */
+    private AudioOutput obtainAudioOutput() {
+        if (mAudioOutput == null && mInitialized) {
+            final int rate = (mSampleRate > 0) ? mSampleRate : 22050;
+            try {
+                mAudioOutput = new AudioOutput(rate);
+                Log.i(TAG, "Audio output initialized at " + rate + " Hz");
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to create the audio output", e);
+            }
         }
+        return mAudioOutput;
     }
 
 
     private void attemptInit() {
         if (mInitialized) return;
 
+        if (VoiceDataArchive.isAvailable(mContext) && !openDataArchive()) {
+            Log.w(TAG, "Unable to read the voice data archive in place; extracting it");
+            VoiceDataArchive.setEnabled(false);
+            CheckVoiceData.installVoiceDataIfMissing(mContext);
+        }
+
         if (!CheckVoiceData.hasBaseResources(mContext)) {
             Log.e(TAG, "Missing base resources");
             return;
         }
 
         mSampleRate = nativeCreate(mDatapath);
+        mAppliedSettings = null;
         if (mSampleRate <= 0) {
             Log.e(TAG, "Failed to initialize speech synthesis library");
             return;
         }
 
         Log.i(TAG, "Initialized eSpeak-NG with sample rate = " + mSampleRate);
+        nativeSetDictionaryCacheSize(mDictionaryCacheSize);
+        for (int id = 1; id < mDefaultValues.length; ++id) {
+            mDefaultValues[id] = nativeGetParameter(id, 0);
+        }
+
+        // Audio is delivered through a preallocated direct buffer, so the
+        // steady-state synthesis path does not allocate a Java array per chunk.
+        final int bufferSize = (mSampleRate * AUDIO_BUFFER_MILLISECONDS / 1000) * FORMAT_PCM_S16;
+        mAudioBuffer = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.nativeOrder());
+        mEventBuffer = new int[EVENT_BUFFER_EVENTS * EVENT_RECORD_SIZE];
+        claimAudioBuffer();
+        if (mAudioBufferOwner != this) {
+            Log.w(TAG, "Failed to register the audio buffer; using per-chunk arrays");
+            mAudioBuffer = null;
+            mEventBuffer = null;
+        }
+
         mInitialized = true;
     }
 
 
+    /** Maps the voice data archive for the native engine, which reads its files in place. */
+    private boolean openDataArchive() {
+        if (mDataArchiveOpen) {
+            return true;
+        }
+
+        final AssetFileDescriptor archive = VoiceDataArchive.open(mContext);
+        if (archive == null) {
+            return false;
+        }
+
+        try {
+            final long startedAt = System.nanoTime();
+            mDataArchiveOpen = nativeOpenDataArchive(archive.getParcelFileDescriptor().getFd(), archive.getStartOffset(), archive.getLength());
+            if (mDataArchiveOpen) {
+                Log.i(TAG, "Mapped the voice data archive in " + (System.nanoTime() - startedAt) / 1000 + "us");
+            }
+            return mDataArchiveOpen;
+        } finally {
+            VoiceDataArchive.close(archive);
+        }
+    }
+
     public static String getSampleText(Context context, Locale locale) {
         final DisplayMetrics metrics = context.getResources().getDisplayMetrics();
         final Configuration config = context.getResources().getConfiguration();
@@ -353,13 +1102,25 @@ public class SpeechSynthesis {
 
     private static native final boolean nativeClassInit();
 
-    public native final int nativeCreate(String path);
+    private native final int nativeCreate(String path);
 
     private native final static String nativeGetVersion();
 
+    private native final static void nativeSetDictionaryCacheSize(int bytes);
+
+    private native final static boolean nativeOpenDataArchive(int fd, long offset, long length);
+
+    private native final void nativeDestroy();
+
+    private native final boolean nativeSetAudioBuffer(ByteBuffer buffer);
+
+    private native final boolean nativeSetEventBuffer(int[] events);
+
+    private native final void nativeSetChunkSchedule(int firstChunkMillis, int chunkMillis);
+
     private native final String[] nativeGetAvailableVoices();
 
-    public native final boolean nativeSetVoiceByName(String name);
+    private native final boolean nativeSetVoiceByName(String name);
 
     private native final boolean nativeSetVoiceByProperties(String language, int gender, int age);
 
@@ -369,13 +1130,303 @@ public class SpeechSynthesis {
 
     private native final boolean nativeSetPunctuationCharacters(String characters);
 
-    public native final boolean nativeSynthesize(String text, boolean isSsml);
+    private native final boolean nativeApply(int[] params, String voice, String punctuationCharacters);
+
+    private native final boolean nativeSynthesize(String text, boolean isSsml);
+
+    private native final boolean nativeSynthesizeBuffer(ByteBuffer text, int length, boolean isContinuation, boolean hasMore);
+
+    private native final boolean nativeStop();
+
+    /**
+     * The timing of a renderToFile request.
+     */
+    public static class RenderResult {
+        /** The duration of the rendered audio, in milliseconds. */
+        public final long audioMillis;
+
+        /** The time taken to render the audio, in milliseconds. */
+        public final long renderMillis;
+
+        public RenderResult(long audioMillis, long renderMillis) {
+            this.audioMillis = audioMillis;
+            this.renderMillis = renderMillis;
+        }
+
+        /**
+         * Gets the time taken to render the audio relative to its duration.
+         * Values below 1 are faster than real time.
+         */
+        public double getRealTimeFactor() {
+            return (audioMillis == 0) ? 0 : (double)renderMillis / audioMillis;
+        }
+    }
+
+    /** Writes the synthesized audio for a renderToFile request. */
+    private static class FileRenderer implements SynthReadyCallback {
+        private final WavWriter mWriter;
+        private volatile SynthesisTask mTask;
+        private IOException mError = null;
 
-    public native final boolean nativeStop();
+        private FileRenderer(WavWriter writer) {
+            mWriter = writer;
+        }
+
+        @Override
+        public void onSynthDataReady(byte[] audioData) {
+            if (audioData != null) {
+                onSynthDataReady(ByteBuffer.wrap(audioData), 0, audioData.length);
+            }
+        }
+
+        @Override
+        public void onSynthDataReady(ByteBuffer audioData, int offset, int length) {
+            if (mError != null) {
+                return;
+            }
+            try {
+                mWriter.write(audioData);
+            } catch (IOException e) {
+                mError = e;
+                if (mTask != null) mTask.cancel(false);
+            }
+        }
+
+        @Override
+        public void onSynthDataComplete() {
+        }
+    }
+
+    /**
+     * The sizes of the audio chunks delivered while synthesizing an utterance.
+     * A small first chunk reduces the time to the first audio, while larger
+     * chunks after that reduce the per-chunk overhead.
+     *
+     * NOTE: eSpeak renders audio in 60ms buffers, so chunks are rounded up to
+     * a multiple of that size, and are limited to the size of the audio buffer.
+     */
+    public static class ChunkSchedule {
+        /** Request parameter overriding the size of the first chunk, in milliseconds. */
+        public static final String PARAM_FIRST_CHUNK_MILLIS = "com.reecedunn.espeak.FIRST_CHUNK_MILLIS";
+
+        /** Request parameter overriding the size of the remaining chunks, in milliseconds. */
+        public static final String PARAM_CHUNK_MILLIS = "com.reecedunn.espeak.CHUNK_MILLIS";
+
+        /** Delivers the audio in 300ms chunks. */
+        public static final ChunkSchedule DEFAULT = new ChunkSchedule(300, 300);
+
+        /** Delivers the first 60ms of audio as soon as it is available. */
+        public static final ChunkSchedule LOW_LATENCY = new ChunkSchedule(60, 300);
+
+        /** Delivers the audio in the largest chunks possible, for offline rendering. */
+        public static final ChunkSchedule BULK = new ChunkSchedule(AUDIO_BUFFER_MILLISECONDS, AUDIO_BUFFER_MILLISECONDS);
+
+        public final int firstChunkMillis;
+        public final int chunkMillis;
+
+        public ChunkSchedule(int firstChunkMillis, int chunkMillis) {
+            this.firstChunkMillis = Math.max(1, Math.min(firstChunkMillis, AUDIO_BUFFER_MILLISECONDS));
+            this.chunkMillis = Math.max(1, Math.min(chunkMillis, AUDIO_BUFFER_MILLISECONDS));
+        }
+
+        /**
+         * Gets the chunk schedule requested in the synthesis request parameters.
+         */
+        public static ChunkSchedule fromParams(Bundle params, ChunkSchedule defaultValue) {
+            if (params == null) {
+                return defaultValue;
+            }
+            final int firstChunkMillis = params.getInt(PARAM_FIRST_CHUNK_MILLIS, defaultValue.firstChunkMillis);
+            final int chunkMillis = params.getInt(PARAM_CHUNK_MILLIS, defaultValue.chunkMillis);
+            if (firstChunkMillis == defaultValue.firstChunkMillis && chunkMillis == defaultValue.chunkMillis) {
+                return defaultValue;
+            }
+            return new ChunkSchedule(firstChunkMillis, chunkMillis);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof ChunkSchedule) {
+                ChunkSchedule other = (ChunkSchedule)o;
+                return other.firstChunkMillis == firstChunkMillis && other.chunkMillis == chunkMillis;
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return firstChunkMillis * 31 + chunkMillis;
+        }
+    }
+
+    /**
+     * A queued synthesis request. Cancelling the request removes it from the
+     * queue, or stops it at the next audio chunk if it is being synthesized.
+     * A cancelled request that is being synthesized still delivers its
+     * completion to its callback, so await waits for that to happen.
+     */
+    public final class SynthesisTask extends FutureTask<Boolean> {
+        private final CharSequence mText;
+        private final boolean mIsSsml;
+        private final EngineSettings mSettings;
+        private final ChunkSchedule mSchedule;
+        private final SynthReadyCallback mTaskCallback;
+
+        /** The phrase cache key, and the audio and events recorded for the cache; only used on the synthesis thread. */
+        private String mCacheKey = null;
+        private boolean mIsRecording = false;
+        private int mRecordingLength = 0;
+        private int mRecordedEventsLength = 0;
+        private long mRecordingLimit = 0;
+
+        /** The position of the piece of text being synthesized; only used on the synthesis thread. */
+        private int mTextPositionBase = 0;
+        private long mSampleBase = 0;
+        private long mSamplesDelivered = 0;
+
+        private final long mSubmittedAt = System.nanoTime();
+
+        /** Released when the synthesis thread has finished with the request, or it is removed from the queue. */
+        private final CountDownLatch mFinished = new CountDownLatch(1);
+
+        private SynthesisTask(CharSequence text, boolean isSsml, EngineSettings settings, ChunkSchedule schedule, SynthReadyCallback callback) {
+            super(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return synthesizeNow(mActiveTask);
+                }
+            });
+            mText = text;
+            mIsSsml = isSsml;
+            mSettings = settings;
+            mSchedule = (schedule != null) ? schedule : ChunkSchedule.DEFAULT;
+            mTaskCallback = callback;
+        }
+
+        private SynthReadyCallback getCallback() {
+            return (mTaskCallback != null) ? mTaskCallback : mCallback;
+        }
+
+        /**
+         * Makes the event positions relative to the start of the text and
+         * audio, instead of the piece being synthesized.
+         */
+        private void offsetEvents(int[] events, int count) {
+            if (mTextPositionBase == 0 && mSampleBase == 0) {
+                return;
+            }
+            for (int i = 0; i < count; ++i) {
+                final int event = i * EVENT_RECORD_SIZE;
+                events[event + 1] += mTextPositionBase;
+                events[event + 3] += (int)mSampleBase;
+            }
+        }
+
+        private void onAudioDelivered(int length) {
+            if (length > 0 && mSamplesDelivered == 0) {
+                SynthesisMetrics.getInstance().firstAudio.record((System.nanoTime() - mSubmittedAt) / 1000);
+            }
+            mSamplesDelivered += length / FORMAT_PCM_S16;
+        }
+
+        private void record(ByteBuffer audioData, int length) {
+            final int required = mRecordingLength + length;
+            if (required > mRecordingLimit) {
+                mIsRecording = false; // Too long to cache.
+                return;
+            }
+            if (mRecordingBuffer == null || required > mRecordingBuffer.length) {
+                final int capacity = (mRecordingBuffer == null) ? FORMAT_PCM_S16 * mSampleRate : mRecordingBuffer.length * 2;
+                final int size = (int)Math.min(mRecordingLimit, Math.max(required, capacity));
+                mRecordingBuffer = (mRecordingBuffer == null) ? new byte[size] : Arrays.copyOf(mRecordingBuffer, size);
+            }
+            audioData.get(mRecordingBuffer, mRecordingLength, length);
+            mRecordingLength = required;
+        }
+
+        private void recordEvents(int[] events, int count) {
+            final int required = mRecordedEventsLength + count * EVENT_RECORD_SIZE;
+            if (mRecordedEvents == null || required > mRecordedEvents.length) {
+                final int capacity = (mRecordedEvents == null) ? EVENT_BUFFER_EVENTS * EVENT_RECORD_SIZE : mRecordedEvents.length * 2;
+                final int size = Math.max(required, capacity);
+                mRecordedEvents = (mRecordedEvents == null) ? new int[size] : Arrays.copyOf(mRecordedEvents, size);
+            }
+            System.arraycopy(events, 0, mRecordedEvents, mRecordedEventsLength, count * EVENT_RECORD_SIZE);
+            mRecordedEventsLength = required;
+        }
+
+        @Override
+        public void run() {
+            mActiveTask = this;
+            try {
+                super.run();
+            } finally {
+                mActiveTask = null;
+                mFinished.countDown();
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (!super.cancel(false)) {
+                return false;
+            }
+            if (mSynthesisThread.remove(this)) {
+                mFinished.countDown();
+            }
+            return true;
+        }
+
+        @Override
+        protected void done() {
+            mPendingTasks.remove(this);
+        }
+
+        /**
+         * Waits for the request to complete. If the request is cancelled
+         * while it is being synthesized, this waits for the synthesis thread
+         * to stop delivering its audio.
+         *
+         * @return true if the text was synthesized, false if it failed or was cancelled.
+         */
+        public boolean await() {
+            try {
+                mFinished.await();
+                return get();
+            } catch (CancellationException e) {
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Synthesis failed", e.getCause());
+                return false;
+            }
+        }
+    }
 
     public interface SynthReadyCallback {
         void onSynthDataReady(byte[] audioData);
 
+        /**
+         * Receives audio from the engine's shared direct buffer. The buffer
+         * position and limit are set to the audio data, which is only valid
+         * until this method returns.
+         */
+        default void onSynthDataReady(ByteBuffer audioData, int offset, int length) {
+            final byte[] data = new byte[length];
+            audioData.get(data, 0, length);
+            onSynthDataReady(data);
+        }
+
+        /**
+         * Receives the events for the audio passed to the next call to
+         * onSynthDataReady. Each event is stored as EVENT_RECORD_SIZE ints,
+         * and the array is only valid until this method returns.
+         */
+        default void onSynthEvents(int[] events, int count) {
+        }
+
         void onSynthDataComplete();
     }
 
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2013 Reece H. Dunn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.reecedunn.espeak;
+
+import java.io.PrintWriter;
+
+/**
+ * The performance of the synthesis requests made in this process.
+ *
+ * The native engine is shared by every SpeechSynthesis object, so the
+ * metrics are as well.
+ */
+public class SynthesisMetrics {
+    private static final SynthesisMetrics mInstance = new SynthesisMetrics();
+
+    /** The time from a request being submitted to the synthesis thread starting it. */
+    public final Histogram queueWait = new Histogram("queue_wait", "us", Histogram.exponentialBounds(100, 16));
+
+    /** The time taken to apply the voice and parameters to the native engine. */
+    public final Histogram setup = new Histogram("setup", "us", Histogram.exponentialBounds(10, 18));
+
+    /** The time from a request being submitted to its first audio being delivered. */
+    public final Histogram firstAudio = new Histogram("first_audio", "us", Histogram.exponentialBounds(500, 14));
+
+    /** The time taken to synthesize a request. */
+    public final Histogram synthesisTime = new Histogram("synthesis_time", "ms", Histogram.exponentialBounds(1, 18));
+
+    /** The synthesis time divided by the audio duration; values below 1000 are faster than real time. */
+    public final Histogram realTimeFactor = new Histogram("real_time_factor", "permille", Histogram.exponentialBounds(8, 12));
+
+    /** The audio delivered for a request. */
+    public final Histogram bytesDelivered = new Histogram("bytes_delivered", "bytes", Histogram.exponentialBounds(1024, 16));
+
+    /** The time taken to load a voice that is selected before it is used. */
+    public final Histogram preload = new Histogram("preload", "us", Histogram.exponentialBounds(100, 16));
+
+    /** The time from a stop request to the synthesis thread producing no more audio. */
+    public final Histogram stop = new Histogram("stop", "us", Histogram.exponentialBounds(100, 16));
+
+    /** The time taken to install the voice data. */
+    public final Histogram voiceDataInstall = new Histogram("voice_data_install", "ms", Histogram.exponentialBounds(50, 12));
+
+    private final Histogram[] mHistograms = new Histogram[] {
+        queueWait, setup, firstAudio, synthesisTime, realTimeFactor, bytesDelivered, preload, stop, voiceDataInstall,
+    };
+
+    public static SynthesisMetrics getInstance() {
+        return mInstance;
+    }
+
+    public Histogram[] getHistograms() {
+        return mHistograms;
+    }
+
+    public void reset() {
+        for (Histogram histogram : mHistograms) {
+            histogram.reset();
+        }
+    }
+
+    public void dump(PrintWriter writer) {
+        for (Histogram histogram : mHistograms) {
+            histogram.dump(writer);
+        }
+    }
+}
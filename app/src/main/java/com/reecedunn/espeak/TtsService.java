@@ -30,9 +30,10 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.media.AudioTrack;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.speech.tts.SynthesisCallback;
 import android.speech.tts.SynthesisRequest;
@@ -43,6 +44,9 @@ import android.util.Pair;
 
 import com.reecedunn.espeak.SpeechSynthesis.SynthReadyCallback;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -50,6 +54,11 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Implements the eSpeak engine as a {@link TextToSpeechService}.
@@ -65,20 +74,59 @@ public class TtsService extends TextToSpeechService {
     private static Context storageContext;
     private static final boolean DEBUG = BuildConfig.DEBUG;
 
-    private SpeechSynthesis mEngine;
-    private SynthesisCallback mCallback;
+    /** How long a request waits for the engine to finish initializing. */
+    private static final long INITIALIZE_TIMEOUT_MILLIS = 5000;
+
+    private volatile SpeechSynthesis mEngine;
+    private volatile VoiceSettings.Provider mVoiceSettings;
+
+    /** Initializes the engine off the main thread, so the service can answer binder calls immediately. */
+    private final ExecutorService mInitThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "eSpeakInitialize");
+        }
+    });
+    private final CountDownLatch mInitialized = new CountDownLatch(1);
+    private long mCreatedAt = 0;
+    private volatile long mColdStartLatency = -1;
+
+    /** Only used on the synthesis thread. */
+    private byte[] mAudioChunk = null;
 
     private final Map<String, Voice> mAvailableVoices = new HashMap<String, Voice>();
-    protected Voice mMatchingVoice = null;
+    private volatile VoiceIndex mVoiceIndex = new VoiceIndex(new ArrayList<Voice>());
+
+    private static final Pair<Voice, Integer> MISSING_DATA = new Pair<>(null, TextToSpeech.LANG_MISSING_DATA);
+    protected volatile Voice mMatchingVoice = null;
+
+    /** The language requested before the engine was initialized, e.g. the default language. */
+    private volatile String[] mPendingLanguage = null;
 
     private BroadcastReceiver mOnLanguagesDownloaded = null;
 
     @Override
     public void onCreate() {
+        mCreatedAt = SystemClock.elapsedRealtime();
         storageContext = EspeakApp.getStorageContext();
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)
             storageContext.moveSharedPreferencesFrom(this, this.getPackageName() + "_preferences");
-        initializeTtsEngine();
+        mInitThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    initializeTtsEngine();
+                } finally {
+                    mInitialized.countDown();
+                }
+                Log.i(TAG, "Initialized the engine in " + (SystemClock.elapsedRealtime() - mCreatedAt) + "ms");
+
+                final String[] pending = mPendingLanguage;
+                if (pending != null && mMatchingVoice == null) {
+                    onLoadLanguage(pending[0], pending[1], pending[2]);
+                }
+            }
+        });
         super.onCreate();
     }
 
@@ -88,23 +136,113 @@ public class TtsService extends TextToSpeechService {
         if (mOnLanguagesDownloaded != null) {
             unregisterReceiver(mOnLanguagesDownloaded);
         }
+        // Release the engine after any initialization that is still running.
+        mInitThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mVoiceSettings != null) {
+                    mVoiceSettings.close();
+                    mVoiceSettings = null;
+                }
+                if (mEngine != null) {
+                    mEngine.release();
+                    mEngine = null;
+                }
+            }
+        });
+        mInitThread.shutdown();
     }
 
     /**
-     * Sets up the native eSpeak engine.
+     * Waits for the engine to be initialized.
+     *
+     * @return true if the engine is ready, false if initialization timed out.
+     */
+    private boolean awaitInitialized() {
+        if (mInitialized.getCount() == 0) {
+            return true;
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            // TextToSpeechService.onCreate loads the default language on the
+            // main thread; blocking here would delay the service startup.
+            return false;
+        }
+        try {
+            if (mInitialized.await(INITIALIZE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+            Log.e(TAG, "Timed out waiting for the engine to initialize.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Gets the time from the service being created to the first audio being
+     * delivered to the framework.
+     *
+     * @return The latency in milliseconds, or -1 if no audio has been delivered.
+     */
+    public long getColdStartLatency() {
+        return mColdStartLatency;
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("eSpeak " + SpeechSynthesis.getVersion());
+        writer.println("cold_start_latency (ms): " + mColdStartLatency);
+
+        final SpeechSynthesis engine = mEngine;
+        if (engine != null) {
+            writer.println("last_preload_latency (us): " + engine.getLastPreloadLatency());
+            writer.println("last_stop_latency (us): " + engine.getLastStopLatency());
+        }
+
+        final PhraseCache cache = PhraseCache.getInstance(storageContext);
+        writer.println("phrase_cache: hits=" + cache.getHitCount()
+                + " misses=" + cache.getMissCount()
+                + " evictions=" + cache.getEvictionCount()
+                + " memory_bytes=" + cache.getMemoryBytes()
+                + " disk_bytes=" + cache.getDiskBytes());
+
+        SynthesisMetrics.getInstance().dump(writer);
+    }
+
+    /**
+     * Sets up the native eSpeak engine. The engine is process-global, so an
+     * existing engine is released before the new one is created; requests
+     * that arrive in between see no engine and fail.
      */
     private void initializeTtsEngine() {
+        final PhraseCache cache = PhraseCache.getInstance(storageContext);
+        if (mVoiceSettings != null) {
+            mVoiceSettings.close();
+            mVoiceSettings = null;
+        }
         if (mEngine != null) {
             mEngine.stop();
+            mEngine.release();
             mEngine = null;
+
+            // The voice data has changed, so the cached phrases may be stale.
+            cache.clear();
         }
 
-        mEngine = new SpeechSynthesis(storageContext, mSynthCallback);
-        mAvailableVoices.clear();
-        for (Voice voice : mEngine.getAvailableVoices()) {
-            mAvailableVoices.put(voice.name, voice);
+        final SpeechSynthesis engine = new SpeechSynthesis(storageContext, null);
+        engine.setPhraseCache(cache);
+        final List<Voice> voices = engine.getAvailableVoices();
+        synchronized (mAvailableVoices) {
+            mAvailableVoices.clear();
+            for (Voice voice : voices) {
+                mAvailableVoices.put(voice.name, voice);
+            }
+            mVoiceIndex = new VoiceIndex(mAvailableVoices.values());
         }
 
+        mVoiceSettings = new VoiceSettings.Provider(PreferenceManager.getDefaultSharedPreferences(storageContext), engine);
+        mEngine = engine;
+
         final Intent intent = new Intent(ESPEAK_INITIALIZED);
         sendBroadcast(intent);
     }
@@ -122,13 +260,23 @@ public class TtsService extends TextToSpeechService {
         };
     }
 
-    private Pair<Voice, Integer> findVoice(String language, String country, String variant) {
-        if (!CheckVoiceData.hasBaseResources(storageContext) || CheckVoiceData.canUpgradeResources(storageContext)) {
+    /**
+     * Checks that the voice data is installed, starting the download activity
+     * if it is not.
+     */
+    private boolean checkVoiceData() {
+        // The voices can only be loaded if the base resources are present.
+        if ((mVoiceIndex.isEmpty() && !CheckVoiceData.hasBaseResources(storageContext)) || CheckVoiceData.canUpgradeResources(storageContext)) {
             if (mOnLanguagesDownloaded == null) {
                 mOnLanguagesDownloaded = new BroadcastReceiver() {
                     @Override
                     public void onReceive(Context context, Intent intent) {
-                        initializeTtsEngine();
+                        mInitThread.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                initializeTtsEngine();
+                            }
+                        });
                     }
                 };
 
@@ -139,69 +287,47 @@ public class TtsService extends TextToSpeechService {
             final Intent intent = new Intent(storageContext, DownloadVoiceData.class);
             intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
             startActivity(intent);
-
-            return new Pair<>(null, TextToSpeech.LANG_MISSING_DATA);
-        }
-
-        final Locale query = new Locale(language, country, variant);
-
-        Voice languageVoice = null;
-        Voice countryVoice = null;
-
-        synchronized (mAvailableVoices) {
-            for (Voice voice : mAvailableVoices.values()) {
-                switch (voice.match(query)) {
-                    case TextToSpeech.LANG_COUNTRY_VAR_AVAILABLE:
-                        return new Pair<>(voice, TextToSpeech.LANG_COUNTRY_VAR_AVAILABLE);
-                    case TextToSpeech.LANG_COUNTRY_AVAILABLE:
-                        countryVoice = voice;
-                    case TextToSpeech.LANG_AVAILABLE:
-                        languageVoice = voice;
-                        break;
-                }
-            }
+            return false;
         }
+        return true;
+    }
 
-        if (languageVoice == null) {
-            return new Pair<>(null, TextToSpeech.LANG_NOT_SUPPORTED);
-        } else if (countryVoice == null) {
-            return new Pair<>(languageVoice, TextToSpeech.LANG_AVAILABLE);
-        } else {
-            return new Pair<>(countryVoice, TextToSpeech.LANG_COUNTRY_AVAILABLE);
+    private Pair<Voice, Integer> findVoice(String language, String country, String variant) {
+        if (!checkVoiceData()) {
+            return MISSING_DATA;
         }
+        // The dictionary is installed when the voice is loaded, not when the
+        // language is queried, so probing many languages does not install them.
+        return mVoiceIndex.find(language, country, variant);
     }
 
     private Pair<Voice, Integer> getDefaultVoiceFor(String language, String country, String variant) {
-        final Pair<Voice, Integer> match = findVoice(language, country, variant);
-        switch (match.second) {
-            case TextToSpeech.LANG_AVAILABLE:
-                if (language.equals("fr") || language.equals("fra")) {
-                    return new Pair<>(findVoice(language, "FRA", "").first, match.second);
-                }
-                if (language.equals("pt") || language.equals("por")) {
-                    return new Pair<>(findVoice(language, "PRT", "").first, match.second);
-                }
-                return new Pair<>(findVoice(language, "", "").first, match.second);
-            case TextToSpeech.LANG_COUNTRY_AVAILABLE:
-                if ((language.equals("vi") || language.equals("vie")) && (country.equals("VN") || country.equals("VNM"))) {
-                    return new Pair<>(findVoice(language, country, "hue").first, match.second);
-                }
-                return new Pair<>(findVoice(language, country, "").first, match.second);
-            default:
-                return match;
+        if (!checkVoiceData()) {
+            return MISSING_DATA;
         }
+        return mVoiceIndex.findDefault(language, country, variant);
     }
 
     @Override
     protected int onIsLanguageAvailable(String language, String country, String variant) {
+        if (!awaitInitialized()) {
+            return TextToSpeech.LANG_NOT_SUPPORTED;
+        }
         return findVoice(language, country, variant).second;
     }
 
     @Override
     protected int onLoadLanguage(String language, String country, String variant) {
+        if (!awaitInitialized()) {
+            mPendingLanguage = new String[] { language, country, variant };
+            return TextToSpeech.LANG_NOT_SUPPORTED;
+        }
         final Pair<Voice, Integer> match = getDefaultVoiceFor(language, country, variant);
         if (match.first != null) {
-            mMatchingVoice = match.first;
+            if (!DictionaryCache.prepare(storageContext, match.first)) {
+                return TextToSpeech.LANG_MISSING_DATA;
+            }
+            setMatchingVoice(match.first);
         }
         return match.second;
     }
@@ -213,6 +339,9 @@ public class TtsService extends TextToSpeechService {
 
     @Override
     public String onGetDefaultVoiceNameFor(String language, String country, String variant) {
+        if (!awaitInitialized()) {
+            return null;
+        }
         final Voice match = getDefaultVoiceFor(language, country, variant).first;
         return (match == null) ? null : match.name;
     }
@@ -220,7 +349,14 @@ public class TtsService extends TextToSpeechService {
     @Override
     public List<android.speech.tts.Voice> onGetVoices() {
         List<android.speech.tts.Voice> voices = new ArrayList<android.speech.tts.Voice>();
-        for (Voice voice : mAvailableVoices.values()) {
+        if (!awaitInitialized()) {
+            return voices;
+        }
+        final List<Voice> available;
+        synchronized (mAvailableVoices) {
+            available = new ArrayList<Voice>(mAvailableVoices.values());
+        }
+        for (Voice voice : available) {
             int quality = android.speech.tts.Voice.QUALITY_NORMAL;
             int latency = android.speech.tts.Voice.LATENCY_VERY_LOW;
             Locale locale = new Locale(voice.locale.getISO3Language(), voice.locale.getISO3Country(), voice.locale.getVariant());
@@ -232,17 +368,29 @@ public class TtsService extends TextToSpeechService {
 
     @Override
     public int onIsValidVoiceName(String name) {
-        Voice voice = mAvailableVoices.get(name);
+        if (!awaitInitialized()) {
+            return TextToSpeech.ERROR;
+        }
+        Voice voice = getAvailableVoice(name);
         return (voice == null) ? TextToSpeech.ERROR : TextToSpeech.SUCCESS;
     }
 
+    private Voice getAvailableVoice(String name) {
+        synchronized (mAvailableVoices) {
+            return mAvailableVoices.get(name);
+        }
+    }
+
     @Override
     public int onLoadVoice(String name) {
-        Voice voice = mAvailableVoices.get(name);
-        if (voice == null) {
+        if (!awaitInitialized()) {
             return TextToSpeech.ERROR;
         }
-        mMatchingVoice = voice;
+        Voice voice = getAvailableVoice(name);
+        if (voice == null || !DictionaryCache.prepare(storageContext, voice)) {
+            return TextToSpeech.ERROR;
+        }
+        setMatchingVoice(voice);
         return TextToSpeech.SUCCESS;
     }
 
@@ -250,13 +398,20 @@ public class TtsService extends TextToSpeechService {
     protected void onStop() {
         Log.i(TAG, "Received stop request.");
 
-        mEngine.stop();
+        final SpeechSynthesis engine = mEngine;
+        if (engine != null) {
+            engine.stop();
+        }
     }
 
+    /**
+     * Gets the text without copying it, as the engine reads plain text from
+     * the CharSequence a piece at a time.
+     */
     @SuppressWarnings("deprecation")
-    private String getRequestString(SynthesisRequest request) {
+    private CharSequence getRequestText(SynthesisRequest request) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            return request.getCharSequenceText().toString();
+            return request.getCharSequenceText();
         } else {
             return request.getText();
         }
@@ -280,16 +435,31 @@ public class TtsService extends TextToSpeechService {
     }
 
     @Override
-    protected synchronized void onSynthesizeText(SynthesisRequest request, SynthesisCallback callback) {
-        if (mMatchingVoice == null)
+    protected void onSynthesizeText(SynthesisRequest request, SynthesisCallback callback) {
+        if (!awaitInitialized()) {
+            callback.error();
+            return;
+        }
+
+        // The engine is replaced when the voice data is updated, so each
+        // field is only read once.
+        final SpeechSynthesis engine = mEngine;
+        final VoiceSettings.Provider voiceSettings = mVoiceSettings;
+        final Voice voice = mMatchingVoice;
+        if (engine == null || voiceSettings == null) {
+            callback.error();
+            return;
+        }
+
+        if (voice == null)
             return;
 
-        String text = getRequestString(request);
+        CharSequence text = getRequestText(request);
         if (text == null)
             return;
 
         if (DEBUG) {
-            Log.i(TAG, "Received synthesis request: {language=\"" + mMatchingVoice.name + "\"}");
+            Log.i(TAG, "Received synthesis request: {language=\"" + voice.name + "\"}");
 
             final Bundle params = request.getParams();
             for (String key : params.keySet()) {
@@ -298,31 +468,74 @@ public class TtsService extends TextToSpeechService {
             }
         }
 
-        if (text.startsWith("<?xml"))
+        int textOffset = 0;
+        if (startsWith(text, "<?xml"))
         {
             // eSpeak does not recognise/skip "<?...?>" preprocessing tags,
             // so need to remove these before passing to synthesize.
-            text = text.substring(text.indexOf("?>") + 2).trim();
+            final String xml = text.toString();
+            final int bodyOffset = xml.indexOf("?>") + 2;
+            final String body = xml.substring(bodyOffset);
+            final String trimmed = body.trim();
+            text = trimmed;
+            textOffset = bodyOffset + body.indexOf(trimmed);
         }
 
-        mCallback = callback;
-        mCallback.start(mEngine.getSampleRate(), mEngine.getAudioFormat(), mEngine.getChannelCount());
+        callback.start(engine.getSampleRate(), engine.getAudioFormat(), engine.getChannelCount());
+
+        final EngineSettings engineSettings = getEngineSettings(voiceSettings.get(), voice, request.getSpeechRate(), request.getPitch());
+        final SpeechSynthesis.ChunkSchedule schedule = SpeechSynthesis.ChunkSchedule.fromParams(
+                request.getParams(), SpeechSynthesis.ChunkSchedule.LOW_LATENCY);
+        engine.submit(text, startsWith(text, "<speak"), engineSettings, schedule, new RequestCallback(callback, text, textOffset)).await();
+    }
 
-        final VoiceSettings settings = new VoiceSettings(PreferenceManager.getDefaultSharedPreferences(storageContext), mEngine);
-        mEngine.setVoice(mMatchingVoice, settings.getVoiceVariant());
-        mEngine.Rate.setValue(settings.getRate(), request.getSpeechRate());
-        mEngine.Pitch.setValue(settings.getPitch(), request.getPitch());
-        mEngine.PitchRange.setValue(settings.getPitchRange());
-        mEngine.Volume.setValue(settings.getVolume());
-        mEngine.Punctuation.setValue(settings.getPunctuationLevel());
-        mEngine.setPunctuationCharacters(settings.getPunctuationCharacters());
-        mEngine.synthesize(text, text.startsWith("<speak"));
+    private static EngineSettings getEngineSettings(VoiceSettings settings, Voice voice, int speechRate, int pitch) {
+        return new EngineSettings(
+                voice,
+                settings.getVoiceVariant(),
+                (settings.getRate() * speechRate) / 100,
+                (settings.getPitch() * pitch) / 100,
+                settings.getPitchRange(),
+                settings.getVolume(),
+                settings.getPunctuationLevel(),
+                settings.getPunctuationCharacters());
     }
 
     /**
-     * Pipes synthesizer output from native eSpeak to an {@link AudioTrack}.
+     * Selects the voice used by the next synthesis request. When the voice
+     * changes it is preloaded on the engine thread, so the first request in
+     * the new voice does not wait for it to be read from storage.
      */
-    private final SpeechSynthesis.SynthReadyCallback mSynthCallback = new SynthReadyCallback() {
+    private void setMatchingVoice(Voice voice) {
+        final Voice previous = mMatchingVoice;
+        mMatchingVoice = voice;
+
+        final SpeechSynthesis engine = mEngine;
+        final VoiceSettings.Provider settings = mVoiceSettings;
+        if (voice != previous && engine != null && settings != null) {
+            engine.preload(getEngineSettings(settings.get(), voice, 100, 100));
+        }
+    }
+
+    /**
+     * Pipes synthesizer output from native eSpeak to the framework callback
+     * of a synthesis request.
+     */
+    private class RequestCallback implements SynthReadyCallback {
+        private final SynthesisCallback mCallback;
+
+        /** The text passed to eSpeak, and its offset in the request text, for mapping word events. */
+        private final CharSequence mText;
+        private final int mTextOffset;
+        private int mLastCodePoint = 0;
+        private int mLastCharIndex = 0;
+
+        private RequestCallback(SynthesisCallback callback, CharSequence text, int textOffset) {
+            mCallback = callback;
+            mText = text;
+            mTextOffset = textOffset;
+        }
+
         @Override
         public void onSynthDataReady(byte[] audioData) {
             if ((audioData == null) || (audioData.length == 0)) {
@@ -341,9 +554,88 @@ public class TtsService extends TextToSpeechService {
             }
         }
 
+        @Override
+        public void onSynthDataReady(ByteBuffer audioData, int offset, int length) {
+            if (mColdStartLatency < 0) {
+                mColdStartLatency = SystemClock.elapsedRealtime() - mCreatedAt;
+                Log.i(TAG, "Cold start to first audio: " + mColdStartLatency + "ms");
+            }
+
+            final int maxBytesToCopy = mCallback.getMaxBufferSize();
+            if (mAudioChunk == null || mAudioChunk.length < maxBytesToCopy) {
+                mAudioChunk = new byte[maxBytesToCopy];
+            }
+
+            while (length > 0) {
+                final int bytesToWrite = Math.min(maxBytesToCopy, length);
+                audioData.get(mAudioChunk, 0, bytesToWrite);
+                mCallback.audioAvailable(mAudioChunk, 0, bytesToWrite);
+                length -= bytesToWrite;
+            }
+        }
+
+        @Override
+        public void onSynthEvents(int[] events, int count) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+                return;
+            }
+
+            for (int i = 0; i < count; ++i) {
+                final int event = i * SpeechSynthesis.EVENT_RECORD_SIZE;
+                if (events[event] != SpeechSynthesis.EVENT_WORD) {
+                    continue;
+                }
+
+                // eSpeak reports 1-based code point positions.
+                final int position = events[event + 1] - 1;
+                final int start = getCharIndex(position);
+                final int end = getCharIndex(position + events[event + 2]);
+                if (start >= 0 && end >= start) {
+                    mCallback.rangeStart(events[event + 3], mTextOffset + start, mTextOffset + end);
+                }
+            }
+        }
+
         @Override
         public void onSynthDataComplete() {
             mCallback.done();
         }
-    };
+
+        /**
+         * Converts a code point position in the synthesized text to a char index.
+         * Word events arrive in text order, so this continues from the last
+         * position instead of rescanning the text.
+         */
+        private int getCharIndex(int codePoint) {
+            if (codePoint < 0) {
+                return -1;
+            }
+            if (codePoint < mLastCodePoint) {
+                mLastCodePoint = 0;
+                mLastCharIndex = 0;
+            }
+
+            int index = mLastCharIndex;
+            int remaining = codePoint - mLastCodePoint;
+            while (remaining > 0 && index < mText.length()) {
+                index += Character.charCount(Character.codePointAt(mText, index));
+                --remaining;
+            }
+            mLastCodePoint = codePoint - remaining;
+            mLastCharIndex = index;
+            return index;
+        }
+    }
+
+    private static boolean startsWith(CharSequence text, String prefix) {
+        if (text.length() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); ++i) {
+            if (text.charAt(i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
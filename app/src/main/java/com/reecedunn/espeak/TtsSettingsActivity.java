@@ -20,6 +20,7 @@ package com.reecedunn.espeak;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.preference.ListPreference;
@@ -38,9 +39,21 @@ import com.reecedunn.espeak.preference.VoiceVariantPreference;
 public class TtsSettingsActivity extends PreferenceActivity {
 
     private static Context storageContext;
+    private static SpeechSynthesis mEngine = null;
+
+    /**
+     * Gets the engine the settings are read from. The engine waits for the
+     * engine thread, which may be synthesizing for the TTS service, so it is
+     * created off the UI thread before the preferences are shown.
+     */
+    private static synchronized SpeechSynthesis getEngine() {
+        if (mEngine == null) {
+            mEngine = new SpeechSynthesis(storageContext, null);
+        }
+        return mEngine;
+    }
 
     @Override
-    @SuppressWarnings("deprecation")
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
@@ -49,9 +62,28 @@ public class TtsSettingsActivity extends PreferenceActivity {
             PreferenceManager preferenceManager = getPreferenceManager();
             preferenceManager.setStorageDeviceProtected ();
         }
-        // Migrate old eyes-free settings to the new settings:
 
         storageContext = EspeakApp.getStorageContext();
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                migrateSettings();
+                return null;
+            }
+
+            @Override
+            protected void onPostExecute(Void result) {
+                if (!isFinishing()) {
+                    showPreferences();
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Migrates old eyes-free settings to the new settings.
+     */
+    private static void migrateSettings() {
         final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(storageContext);
         final SharedPreferences.Editor editor = prefs.edit();
 
@@ -66,7 +98,7 @@ public class TtsSettingsActivity extends PreferenceActivity {
         String rate = prefs.getString(VoiceSettings.PREF_RATE, null);
         if (rate == null) {
             // Try the old eyes-free setting:
-            SpeechSynthesis engine = new SpeechSynthesis(storageContext, null);
+            SpeechSynthesis engine = getEngine();
             int defaultValue = engine.Rate.getDefaultValue();
             int maxValue = engine.Rate.getMaxValue();
 
@@ -89,6 +121,13 @@ public class TtsSettingsActivity extends PreferenceActivity {
 
         editor.commit();
 
+        // The engine reads the default values when it is initialized, so the
+        // preferences do not wait for the engine thread.
+        getEngine();
+    }
+
+    @SuppressWarnings("deprecation")
+    private void showPreferences() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
         {
             getFragmentManager().beginTransaction().replace(
@@ -191,7 +230,7 @@ public class TtsSettingsActivity extends PreferenceActivity {
      * summary with the current entry value.
      */
     private static void createPreferences(Context context, PreferenceGroup group) {
-        SpeechSynthesis engine = new SpeechSynthesis(storageContext, null);
+        SpeechSynthesis engine = getEngine();
         VoiceSettings settings = new VoiceSettings(PreferenceManager.getDefaultSharedPreferences(storageContext), engine);
 
         group.addPreference(createImportVoicePreference(context));
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2013 Reece H. Dunn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.reecedunn.espeak;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A cache of the voices reported by eSpeak.
+ *
+ * Listing the voices makes eSpeak parse every file in the voices and lang
+ * directories, so the parsed list is stored in a binary file. The file is
+ * keyed by the voice data version and the eSpeak version, and is ignored
+ * when either of them changes.
+ */
+public class VoiceCatalogue {
+    private static final String TAG = VoiceCatalogue.class.getSimpleName();
+
+    private static final int MAGIC = 0x65535643; // "eSVC"
+    private static final int FORMAT_VERSION = 1;
+
+    private static String mKey = null;
+
+    /** The voices, and the number of voices eSpeak reported (including unsupported ones). */
+    public static class Entry {
+        public final List<Voice> voices;
+        public final int voiceCount;
+
+        public Entry(List<Voice> voices, int voiceCount) {
+            this.voices = voices;
+            this.voiceCount = voiceCount;
+        }
+    }
+
+    private static File getCatalogueFile(Context context) {
+        return new File(CheckVoiceData.getDataPath(context).getParentFile(), "voices.cache");
+    }
+
+    private static synchronized String getKey(Context context) {
+        if (mKey == null) {
+            String dataVersion;
+            try {
+                dataVersion = FileUtils.read(context.getResources().openRawResource(R.raw.espeakdata_version)).trim();
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to read the voice data version", e);
+                dataVersion = "";
+            }
+            mKey = dataVersion + "/" + SpeechSynthesis.getVersion();
+        }
+        return mKey;
+    }
+
+    /**
+     * Reads the cached voices.
+     *
+     * @return The voices, or null if there is no cache for the installed voice data.
+     */
+    public static Entry read(Context context) {
+        final File file = getCatalogueFile(context);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            final byte[] data;
+            final RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                data = new byte[(int)in.length()];
+                in.readFully(data);
+            } finally {
+                in.close();
+            }
+
+            final DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+            if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION || !input.readUTF().equals(getKey(context))) {
+                return null;
+            }
+
+            final int voiceCount = input.readInt();
+            final int count = input.readInt();
+            final List<Voice> voices = new ArrayList<Voice>(count);
+            for (int i = 0; i < count; ++i) {
+                final String name = input.readUTF();
+                final String identifier = input.readUTF();
+                final int gender = input.readInt();
+                final int age = input.readInt();
+                final Locale locale = new Locale(input.readUTF(), input.readUTF(), input.readUTF());
+                voices.add(new Voice(name, identifier, gender, age, locale));
+            }
+            return new Entry(voices, voiceCount);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read the voice catalogue", e);
+            file.delete();
+            return null;
+        }
+    }
+
+    public static void write(Context context, Entry entry) {
+        final File file = getCatalogueFile(context);
+        try {
+            final ByteArrayOutputStream data = new ByteArrayOutputStream();
+            final DataOutputStream output = new DataOutputStream(data);
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            output.writeUTF(getKey(context));
+            output.writeInt(entry.voiceCount);
+            output.writeInt(entry.voices.size());
+            for (Voice voice : entry.voices) {
+                output.writeUTF(voice.name);
+                output.writeUTF(voice.identifier);
+                output.writeInt(voice.gender);
+                output.writeInt(voice.age);
+                output.writeUTF(voice.locale.getLanguage());
+                output.writeUTF(voice.locale.getCountry());
+                output.writeUTF(voice.locale.getVariant());
+            }
+            output.flush();
+
+            final File temp = new File(file.getPath() + ".tmp");
+            FileUtils.write(temp, data.toByteArray());
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("Failed to rename " + temp);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write the voice catalogue", e);
+        }
+    }
+
+    /**
+     * Removes the cached voices, so the next call to read returns null.
+     */
+    public static void invalidate(Context context) {
+        getCatalogueFile(context).delete();
+    }
+}
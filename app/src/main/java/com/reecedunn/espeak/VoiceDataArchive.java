@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2013 Reece H. Dunn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.reecedunn.espeak;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * The packaged voice data archive, read by the engine without extracting it.
+ *
+ * The build stores the archive uncompressed in the APK, and its entries
+ * uncompressed in the archive, so the engine can map it from the APK and
+ * read each file in place.
+ */
+public class VoiceDataArchive {
+    private static final String TAG = "eSpeakTTS";
+
+    private static volatile boolean mEnabled = true;
+    private static Boolean mAvailable = null;
+
+    /**
+     * Sets whether the engine reads the voice data from the archive. When
+     * disabled, the voice data is extracted to the data path instead.
+     */
+    public static void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Whether the engine can read the voice data from the archive.
+     */
+    public static boolean isAvailable(Context context) {
+        if (!mEnabled) {
+            return false;
+        }
+
+        synchronized (VoiceDataArchive.class) {
+            if (mAvailable == null) {
+                final AssetFileDescriptor archive = open(context);
+                mAvailable = (archive != null);
+                if (archive != null) {
+                    close(archive);
+                }
+            }
+            return mAvailable;
+        }
+    }
+
+    /**
+     * Opens the archive in the APK.
+     *
+     * @return The archive, or null if it is compressed in the APK.
+     */
+    static AssetFileDescriptor open(Context context) {
+        try {
+            return context.getResources().openRawResourceFd(R.raw.espeakdata);
+        } catch (Resources.NotFoundException e) {
+            Log.w(TAG, "The voice data archive is compressed in the APK, so it will be extracted", e);
+            return null;
+        }
+    }
+
+    static void close(AssetFileDescriptor archive) {
+        try {
+            archive.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close the voice data archive", e);
+        }
+    }
+}
@@ -0,0 +1,570 @@
+/*
+ * Copyright (C) 2013 Reece H. Dunn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.reecedunn.espeak;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Installs the espeak-ng-data files from the packaged voice data archive.
+ *
+ * The entries are inflated straight from the raw resource stream into a
+ * staging directory, which then replaces the installed data. This writes
+ * each file once, and the data path never holds a partial install.
+ *
+ * When the voice data has already been installed, update compares its
+ * manifest with the packaged manifest and only replaces the files that
+ * have changed.
+ *
+ * The archive is indexed from its central directory, and the files are
+ * extracted in parallel on a pool with a thread per core.
+ *
+ * The dictionaries other than English are not installed with the rest of
+ * the voice data, but by DictionaryCache when they are first used.
+ */
+public class VoiceDataInstaller {
+    private static final String TAG = "eSpeakTTS";
+
+    /** The directory the archive entries are stored under. */
+    private static final String ARCHIVE_ROOT = "espeak-ng-data/";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** The most data copied from a stored entry at once. */
+    private static final long TRANSFER_SIZE = 1024 * 1024;
+
+    /** The minimum time between progress updates. */
+    private static final long PROGRESS_INTERVAL_MILLIS = 100;
+
+    /** The files in the data path that are not from the archive. */
+    private static final String VERSION_FILE = "version";
+    private static final String MANIFEST_FILE = "espeakdata_manifest";
+
+    public interface ProgressListener {
+        /**
+         * Called on the installing thread, at most every PROGRESS_INTERVAL_MILLIS.
+         *
+         * @param done  The number of bytes processed.
+         * @param total The number of bytes to process.
+         */
+        void onProgress(long done, long total);
+
+        boolean isCancelled();
+    }
+
+    private static final Object mLock = new Object();
+
+    /**
+     * Replaces the installed voice data with the packaged voice data.
+     *
+     * @param context  The context the data is installed for.
+     * @param listener Receives progress updates and can cancel the install, or null.
+     * @return true if the voice data was installed, false if it was cancelled.
+     * @throws IOException If the archive could not be extracted.
+     */
+    public static boolean install(Context context, ProgressListener listener) throws IOException {
+        synchronized (mLock) {
+            final long startedAt = System.nanoTime();
+            final File dataPath = CheckVoiceData.getDataPath(context);
+            final File staging = new File(dataPath.getParentFile(), dataPath.getName() + ".tmp");
+            delete(staging);
+            staging.mkdirs();
+
+            final boolean completed;
+            try {
+                completed = extract(context, staging, null, listener);
+                if (completed) {
+                    writeVersion(context, staging);
+                    replace(dataPath, staging);
+                }
+            } finally {
+                delete(staging);
+            }
+
+            if (completed) {
+                final long elapsedMillis = (System.nanoTime() - startedAt) / 1000000;
+                SynthesisMetrics.getInstance().voiceDataInstall.record(elapsedMillis);
+                Log.i(TAG, "Installed the voice data in " + elapsedMillis + "ms");
+                VoiceCatalogue.invalidate(context);
+            }
+            return completed;
+        }
+    }
+
+    /**
+     * Updates the installed voice data to the packaged voice data, only
+     * extracting the files that have been added or changed, and deleting the
+     * files that have been removed. If the installed files are not known,
+     * all of the voice data is installed.
+     *
+     * @param context  The context the data is installed for.
+     * @param listener Receives progress updates and can cancel the update, or null.
+     * @return true if the voice data was updated, false if it was cancelled.
+     * @throws IOException If the archive could not be extracted.
+     */
+    public static boolean update(Context context, ProgressListener listener) throws IOException {
+        synchronized (mLock) {
+            final File dataPath = CheckVoiceData.getDataPath(context);
+            final File installedManifest = new File(dataPath, MANIFEST_FILE);
+            if (!installedManifest.exists()) {
+                return install(context, listener);
+            }
+
+            final long startedAt = System.nanoTime();
+            final VoiceDataManifest installed;
+            try {
+                installed = VoiceDataManifest.read(installedManifest);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to read the installed voice data manifest", e);
+                return install(context, listener);
+            }
+
+            final VoiceDataManifest packaged = VoiceDataManifest.read(context.getResources().openRawResource(R.raw.espeakdata_manifest));
+            final Set<String> changed = packaged.getChangedFiles(installed);
+            final Set<String> removed = packaged.getRemovedFiles(installed);
+
+            // Dictionaries that have not been installed on demand are left for when they are used.
+            final Iterator<String> paths = changed.iterator();
+            while (paths.hasNext()) {
+                final String path = paths.next();
+                if (DictionaryCache.isOnDemand(path) && !new File(dataPath, path).exists()) {
+                    paths.remove();
+                }
+            }
+
+            // The manifest is written last, so an interrupted update is resumed by the next one.
+            if (!changed.isEmpty() && !extract(context, dataPath, changed, listener)) {
+                return false;
+            }
+            for (String path : removed) {
+                new File(dataPath, path).delete();
+            }
+            writeVersion(context, dataPath);
+
+            final long elapsedMillis = (System.nanoTime() - startedAt) / 1000000;
+            SynthesisMetrics.getInstance().voiceDataInstall.record(elapsedMillis);
+            Log.i(TAG, "Updated the voice data in " + elapsedMillis + "ms: " + changed.size() + " of " + packaged.size()
+                    + " files changed, " + removed.size() + " removed");
+            VoiceCatalogue.invalidate(context);
+            return true;
+        }
+    }
+
+    /**
+     * Installs a dictionary that is installed on demand, then removes the
+     * least recently used dictionaries if they are over the cache size.
+     *
+     * @param context The context the data is installed for.
+     * @param name    The file name of the dictionary, e.g. "de_dict".
+     * @return true if the dictionary was installed, false if it is not in the voice data.
+     * @throws IOException If the dictionary could not be extracted.
+     */
+    static boolean installDictionary(Context context, String name) throws IOException {
+        synchronized (mLock) {
+            final File dataPath = CheckVoiceData.getDataPath(context);
+            final File dictionary = new File(dataPath, name);
+            if (dictionary.exists()) {
+                return true;
+            }
+
+            // The render workers run in other processes, so each install is staged in its own directory.
+            final long startedAt = System.nanoTime();
+            final File staging = File.createTempFile(name, ".tmp", dataPath.getParentFile());
+            staging.delete();
+            staging.mkdirs();
+            try {
+                extract(context, staging, Collections.singleton(name), null);
+                final File extracted = new File(staging, name);
+                if (!extracted.exists()) {
+                    return false;
+                }
+                if (!extracted.renameTo(dictionary)) {
+                    throw new IOException("Unable to move the dictionary to " + dictionary);
+                }
+            } finally {
+                delete(staging);
+            }
+
+            Log.i(TAG, "Installed the dictionary " + name + " in " + (System.nanoTime() - startedAt) / 1000000 + "ms");
+            try {
+                DictionaryCache.evict(dataPath, VoiceDataManifest.read(new File(dataPath, MANIFEST_FILE)), name);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to read the installed voice data manifest", e);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Whether the installed voice data is the packaged voice data.
+     */
+    public static boolean isUpToDate(Context context) {
+        try {
+            final String packaged = FileUtils.read(context.getResources().openRawResource(R.raw.espeakdata_version));
+            final File installed = new File(CheckVoiceData.getDataPath(context), VERSION_FILE);
+            return installed.exists() && FileUtils.read(installed).equals(packaged);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read the voice data version", e);
+            return true;
+        }
+    }
+
+    private static void writeVersion(Context context, File output) throws IOException {
+        final String version = FileUtils.read(context.getResources().openRawResource(R.raw.espeakdata_version));
+        FileUtils.write(new File(output, MANIFEST_FILE), FileUtils.readBinary(context.getResources().openRawResource(R.raw.espeakdata_manifest)));
+        FileUtils.write(new File(output, VERSION_FILE), version);
+    }
+
+    /**
+     * Extracts the archive files to output.
+     *
+     * @param include The files to extract, or null to extract all of the files that are not installed on demand into an empty directory.
+     */
+    private static boolean extract(Context context, File output, Set<String> include, ProgressListener listener) throws IOException {
+        final AssetFileDescriptor archive = VoiceDataArchive.open(context);
+        if (archive == null) {
+            return extractStream(context, output, include, listener);
+        }
+
+        try {
+            // The stream owns a duplicate of the descriptor, and its channel reads
+            // from the start of the APK, so the archive offset is applied here.
+            final FileInputStream stream = new ParcelFileDescriptor.AutoCloseInputStream(ParcelFileDescriptor.dup(archive.getFileDescriptor()));
+            try {
+                final ZipIndex index = new ZipIndex(stream.getChannel(), archive.getStartOffset(), archive.getLength());
+                return extractParallel(index, output, include, listener);
+            } finally {
+                stream.close();
+            }
+        } finally {
+            VoiceDataArchive.close(archive);
+        }
+    }
+
+    private static boolean extractParallel(final ZipIndex index, File output, Set<String> include, ProgressListener listener) throws IOException {
+        final String root = output.getCanonicalPath() + File.separator;
+        final List<ZipIndex.Entry> entries = new ArrayList<ZipIndex.Entry>();
+        final List<File> files = new ArrayList<File>();
+        long total = 0;
+        for (ZipIndex.Entry entry : index.getEntries()) {
+            final String name = getName(entry.name);
+            if (name.isEmpty() || entry.isDirectory() || !isIncluded(name, include)) {
+                continue;
+            }
+            entries.add(entry);
+            total += entry.size;
+        }
+
+        // Start the largest files first, so a large dictionary is not left running on its own at the end.
+        Collections.sort(entries, new Comparator<ZipIndex.Entry>() {
+            @Override
+            public int compare(ZipIndex.Entry a, ZipIndex.Entry b) {
+                return Long.compare(b.size, a.size);
+            }
+        });
+        for (ZipIndex.Entry entry : entries) {
+            final File file = new File(output, getName(entry.name));
+            if (!file.getCanonicalPath().startsWith(root)) {
+                throw new IOException("Archive entry is outside of the data path: " + entry.name);
+            }
+            files.add(file);
+        }
+
+        final int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), entries.size()));
+        final ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "eSpeakExtract-" + mCount.incrementAndGet());
+            }
+        });
+        final ExecutorCompletionService<Void> completion = new ExecutorCompletionService<Void>(pool);
+        final AtomicLong done = new AtomicLong();
+        final AtomicBoolean stopped = new AtomicBoolean();
+        final boolean replace = (include != null);
+        for (int i = 0; i < entries.size(); ++i) {
+            final ZipIndex.Entry entry = entries.get(i);
+            final File file = files.get(i);
+            completion.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    extractEntry(index, entry, file, replace, done, stopped);
+                    return null;
+                }
+            });
+        }
+
+        try {
+            long publishedAt = 0;
+            for (int remaining = entries.size(); remaining > 0; ) {
+                final Future<Void> completed = completion.poll(PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (completed != null) {
+                    --remaining;
+                    completed.get();
+                }
+
+                if (listener != null) {
+                    if (listener.isCancelled()) {
+                        return false;
+                    }
+                    final long now = System.nanoTime();
+                    if (now - publishedAt >= PROGRESS_INTERVAL_MILLIS * 1000000) {
+                        listener.onProgress(done.get(), total);
+                        publishedAt = now;
+                    }
+                }
+            }
+
+            if (listener != null) {
+                listener.onProgress(total, total);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException("Failed to extract the voice data", e.getCause());
+        } finally {
+            // Wait for the running extractions to stop, so the caller can delete their files.
+            stopped.set(true);
+            pool.shutdownNow();
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void extractEntry(ZipIndex index, ZipIndex.Entry entry, File file, boolean replace, AtomicLong done, AtomicBoolean stopped) throws IOException {
+        final File parent = file.getParentFile();
+        if (!parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Unable to create " + parent);
+        }
+
+        // Replace an installed file in one step, so it is never partially written.
+        final File target = replace ? new File(file.getPath() + ".tmp") : file;
+        final FileOutputStream stream = new FileOutputStream(target);
+        try {
+            if (entry.method == ZipIndex.METHOD_STORED) {
+                // Copy in slices, so the progress is updated and a cancel is
+                // seen while a large dictionary is being copied.
+                for (long position = 0; position < entry.size && !stopped.get(); ) {
+                    final long count = Math.min(TRANSFER_SIZE, entry.size - position);
+                    index.transferTo(entry, position, count, stream.getChannel());
+                    position += count;
+                    done.addAndGet(count);
+                }
+            } else {
+                final InputStream input = index.open(entry);
+                try {
+                    final byte[] buffer = new byte[BUFFER_SIZE];
+                    int read;
+                    while (!stopped.get() && (read = input.read(buffer, 0, buffer.length)) != -1) {
+                        stream.write(buffer, 0, read);
+                        done.addAndGet(read);
+                    }
+                } finally {
+                    input.close();
+                }
+            }
+        } finally {
+            stream.close();
+        }
+
+        if (replace && !target.renameTo(file)) {
+            target.delete();
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    private static boolean isIncluded(String name, Set<String> include) {
+        return (include == null) ? !DictionaryCache.isOnDemand(name) : include.contains(name);
+    }
+
+    private static String getName(String name) {
+        return name.startsWith(ARCHIVE_ROOT) ? name.substring(ARCHIVE_ROOT.length()) : name;
+    }
+
+    /**
+     * Extracts the archive files to output by reading the archive from start
+     * to end. This is used when the archive is compressed in the APK, so it
+     * cannot be read at random.
+     */
+    private static boolean extractStream(Context context, File output, Set<String> include, ProgressListener listener) throws IOException {
+        final CountingInputStream archive = new CountingInputStream(context.getResources().openRawResource(R.raw.espeakdata));
+        final long total = archive.available();
+        final ZipInputStream zip = new ZipInputStream(new BufferedInputStream(archive, BUFFER_SIZE));
+        try {
+            final String root = output.getCanonicalPath() + File.separator;
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            long publishedAt = 0;
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                if (listener != null) {
+                    if (listener.isCancelled()) {
+                        return false;
+                    }
+                    final long now = System.nanoTime();
+                    if (now - publishedAt >= PROGRESS_INTERVAL_MILLIS * 1000000) {
+                        listener.onProgress(archive.mCount, total);
+                        publishedAt = now;
+                    }
+                }
+
+                final String name = getName(entry.getName());
+                if (name.isEmpty() || (entry.isDirectory() ? include != null : !isIncluded(name, include))) {
+                    continue;
+                }
+
+                final File file = new File(output, name);
+                if (!file.getCanonicalPath().startsWith(root)) {
+                    throw new IOException("Archive entry is outside of the data path: " + entry.getName());
+                }
+
+                if (entry.isDirectory()) {
+                    file.mkdirs();
+                    continue;
+                }
+
+                file.getParentFile().mkdirs();
+                if (include == null) {
+                    write(zip, file, buffer);
+                } else {
+                    // Replace the installed file in one step, so it is never partially written.
+                    final File temp = new File(file.getPath() + ".tmp");
+                    write(zip, temp, buffer);
+                    if (!temp.renameTo(file)) {
+                        temp.delete();
+                        throw new IOException("Unable to replace " + file);
+                    }
+                }
+            }
+
+            if (listener != null) {
+                listener.onProgress(total, total);
+            }
+            return true;
+        } finally {
+            zip.close();
+        }
+    }
+
+    private static void write(InputStream input, File file, byte[] buffer) throws IOException {
+        final FileOutputStream stream = new FileOutputStream(file);
+        try {
+            int read;
+            while ((read = input.read(buffer, 0, buffer.length)) != -1) {
+                stream.write(buffer, 0, read);
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    /** Swaps the staged data into the data path, removing the old data. */
+    private static void replace(File dataPath, File staging) throws IOException {
+        final File old = new File(dataPath.getParentFile(), dataPath.getName() + ".old");
+        delete(old);
+        if (dataPath.exists() && !dataPath.renameTo(old)) {
+            throw new IOException("Unable to move the existing voice data out of " + dataPath);
+        }
+        if (!staging.renameTo(dataPath)) {
+            old.renameTo(dataPath);
+            throw new IOException("Unable to move the installed voice data to " + dataPath);
+        }
+        delete(old);
+    }
+
+    private static void delete(File directory) {
+        FileUtils.rmdir(directory);
+        directory.delete();
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private long mCount = 0;
+
+        CountingInputStream(InputStream stream) {
+            super(stream);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int value = super.read();
+            if (value != -1) {
+                ++mCount;
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            final int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            final long skipped = super.skip(count);
+            mCount += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2013 Reece H. Dunn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.reecedunn.espeak;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The hash and size of each file in the voice data, as written by the
+ * build's createDataManifest task. Each line is "hash size path", with the
+ * path relative to espeak-ng-data.
+ */
+public class VoiceDataManifest {
+    public static class Entry {
+        public final String hash;
+        public final long size;
+
+        public Entry(String hash, long size) {
+            this.hash = hash;
+            this.size = size;
+        }
+    }
+
+    private final Map<String, Entry> mEntries;
+
+    private VoiceDataManifest(Map<String, Entry> entries) {
+        mEntries = entries;
+    }
+
+    public static VoiceDataManifest parse(String manifest) throws IOException {
+        final Map<String, Entry> entries = new TreeMap<String, Entry>();
+        for (String line : manifest.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            final String[] fields = line.split(" ", 3);
+            if (fields.length != 3) {
+                throw new IOException("Invalid voice data manifest line: " + line);
+            }
+            try {
+                entries.put(fields[2], new Entry(fields[0], Long.parseLong(fields[1])));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid voice data manifest line: " + line);
+            }
+        }
+        return new VoiceDataManifest(entries);
+    }
+
+    public static VoiceDataManifest read(InputStream stream) throws IOException {
+        try {
+            return parse(FileUtils.read(stream));
+        } finally {
+            stream.close();
+        }
+    }
+
+    public static VoiceDataManifest read(File file) throws IOException {
+        return parse(FileUtils.read(file));
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    public Set<String> getPaths() {
+        return mEntries.keySet();
+    }
+
+    public Entry get(String path) {
+        return mEntries.get(path);
+    }
+
+    /**
+     * Gets the files that are new in this manifest, or have changed since the
+     * installed manifest.
+     */
+    public Set<String> getChangedFiles(VoiceDataManifest installed) {
+        final Set<String> changed = new TreeSet<String>();
+        for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+            final Entry other = installed.mEntries.get(entry.getKey());
+            if (other == null || other.size != entry.getValue().size || !other.hash.equals(entry.getValue().hash)) {
+                changed.add(entry.getKey());
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Gets the files in the installed manifest that are not in this manifest.
+     */
+    public Set<String> getRemovedFiles(VoiceDataManifest installed) {
+        final Set<String> removed = new TreeSet<String>(installed.mEntries.keySet());
+        removed.removeAll(mEntries.keySet());
+        return removed;
+    }
+}
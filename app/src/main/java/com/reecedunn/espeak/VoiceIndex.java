@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2013 Reece H. Dunn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.reecedunn.espeak;
+
+import android.speech.tts.TextToSpeech;
+import android.util.Pair;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.MissingResourceException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An index of the available voices by ISO 639-2 language, ISO 3166 alpha-3
+ * country and variant.
+ *
+ * This gives the same results as calling {@link Voice#match} on each voice,
+ * without converting the voice locales on every lookup. The results are also
+ * memoized by the requested language, country and variant, so repeated
+ * lookups do not allocate.
+ */
+public class VoiceIndex {
+    private static class CountryEntry {
+        /** The last voice for the country; used when the variant does not match. */
+        private Voice voice = null;
+        /** The first voice for each variant. */
+        private final Map<String, Voice> variants = new HashMap<String, Voice>();
+    }
+
+    private static class LanguageEntry {
+        /** The last voice for the language; used when the country does not match. */
+        private Voice voice = null;
+        private final Map<String, CountryEntry> countries = new HashMap<String, CountryEntry>();
+    }
+
+    private static final Pair<Voice, Integer> NOT_SUPPORTED = new Pair<>(null, TextToSpeech.LANG_NOT_SUPPORTED);
+
+    private final Map<String, LanguageEntry> mLanguages = new HashMap<String, LanguageEntry>();
+
+    private final Memo mMatches = new Memo();
+    private final Memo mDefaults = new Memo();
+
+    public VoiceIndex(Collection<Voice> voices) {
+        for (Voice voice : voices) {
+            final String language = voice.locale.getISO3Language();
+            LanguageEntry languageEntry = mLanguages.get(language);
+            if (languageEntry == null) {
+                languageEntry = new LanguageEntry();
+                mLanguages.put(language, languageEntry);
+            }
+            languageEntry.voice = voice;
+
+            final String country;
+            try {
+                country = voice.locale.getISO3Country();
+            } catch (MissingResourceException e) {
+                continue; // Voice.match only matches the language.
+            }
+            CountryEntry countryEntry = languageEntry.countries.get(country);
+            if (countryEntry == null) {
+                countryEntry = new CountryEntry();
+                languageEntry.countries.put(country, countryEntry);
+            }
+            countryEntry.voice = voice;
+
+            final String variant = voice.locale.getVariant();
+            if (!countryEntry.variants.containsKey(variant)) {
+                countryEntry.variants.put(variant, voice);
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return mLanguages.isEmpty();
+    }
+
+    /**
+     * Finds the voice that best matches the locale.
+     *
+     * @return The voice, or null if the language is not supported, and the
+     *         {@link TextToSpeech} language availability code.
+     */
+    public Pair<Voice, Integer> find(String language, String country, String variant) {
+        Pair<Voice, Integer> match = mMatches.get(language, country, variant);
+        if (match == null) {
+            match = lookup(new Locale(language, country, variant));
+            mMatches.put(language, country, variant, match);
+        }
+        return match;
+    }
+
+    /**
+     * Finds the voice to use for the locale. When only the language (or only
+     * the language and country) is matched, this is the default voice for
+     * that language (or language and country), not an arbitrary voice.
+     */
+    public Pair<Voice, Integer> findDefault(String language, String country, String variant) {
+        Pair<Voice, Integer> match = mDefaults.get(language, country, variant);
+        if (match == null) {
+            match = lookupDefault(language, country, variant);
+            mDefaults.put(language, country, variant, match);
+        }
+        return match;
+    }
+
+    private Pair<Voice, Integer> lookupDefault(String language, String country, String variant) {
+        final Pair<Voice, Integer> match = find(language, country, variant);
+        switch (match.second) {
+            case TextToSpeech.LANG_AVAILABLE:
+                if (language.equals("fr") || language.equals("fra")) {
+                    return new Pair<>(find(language, "FRA", "").first, match.second);
+                }
+                if (language.equals("pt") || language.equals("por")) {
+                    return new Pair<>(find(language, "PRT", "").first, match.second);
+                }
+                return new Pair<>(find(language, "", "").first, match.second);
+            case TextToSpeech.LANG_COUNTRY_AVAILABLE:
+                if ((language.equals("vi") || language.equals("vie")) && (country.equals("VN") || country.equals("VNM"))) {
+                    return new Pair<>(find(language, country, "hue").first, match.second);
+                }
+                return new Pair<>(find(language, country, "").first, match.second);
+            default:
+                return match;
+        }
+    }
+
+    private Pair<Voice, Integer> lookup(Locale query) {
+        final LanguageEntry languageEntry = mLanguages.get(query.getISO3Language());
+        if (languageEntry == null) {
+            return NOT_SUPPORTED;
+        }
+
+        CountryEntry countryEntry;
+        try {
+            countryEntry = languageEntry.countries.get(query.getISO3Country());
+        } catch (MissingResourceException e) {
+            countryEntry = null;
+        }
+        if (countryEntry == null) {
+            return new Pair<>(languageEntry.voice, TextToSpeech.LANG_AVAILABLE);
+        }
+
+        final Voice voice = countryEntry.variants.get(query.getVariant());
+        if (voice == null) {
+            return new Pair<>(countryEntry.voice, TextToSpeech.LANG_COUNTRY_AVAILABLE);
+        }
+        return new Pair<>(voice, TextToSpeech.LANG_COUNTRY_VAR_AVAILABLE);
+    }
+
+    /** Lookup results keyed by the requested language, country and variant. */
+    private static class Memo {
+        private final Map<String, Map<String, Map<String, Pair<Voice, Integer>>>> mResults
+                = new ConcurrentHashMap<String, Map<String, Map<String, Pair<Voice, Integer>>>>();
+
+        private Pair<Voice, Integer> get(String language, String country, String variant) {
+            final Map<String, Map<String, Pair<Voice, Integer>>> countries = mResults.get(language);
+            if (countries == null) {
+                return null;
+            }
+            final Map<String, Pair<Voice, Integer>> variants = countries.get(country);
+            return (variants == null) ? null : variants.get(variant);
+        }
+
+        private void put(String language, String country, String variant, Pair<Voice, Integer> result) {
+            Map<String, Map<String, Pair<Voice, Integer>>> countries = mResults.get(language);
+            if (countries == null) {
+                countries = new ConcurrentHashMap<String, Map<String, Pair<Voice, Integer>>>();
+                mResults.put(language, countries);
+            }
+            Map<String, Pair<Voice, Integer>> variants = countries.get(country);
+            if (variants == null) {
+                variants = new ConcurrentHashMap<String, Pair<Voice, Integer>>();
+                countries.put(country, variants);
+            }
+            variants.put(variant, result);
+        }
+    }
+}
@@ -21,10 +21,14 @@ import android.content.SharedPreferences;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+/**
+ * The voice settings stored in the preferences.
+ *
+ * The settings are read and validated when the object is created, so the
+ * getters do not access the preferences or the engine. Use a
+ * {@link Provider} to keep a snapshot that tracks preference changes.
+ */
 public class VoiceSettings {
-    private final SharedPreferences mPreferences;
-    private final SpeechSynthesis mEngine;
-
     public static final String PREF_DEFAULT_GENDER = "default_gender";
     public static final String PREF_VARIANT = "espeak_variant";
     public static final String PREF_DEFAULT_RATE = "default_rate";
@@ -48,15 +52,56 @@ public class VoiceSettings {
     public static final String PUNCTUATION_SOME = "some";
     public static final String PUNCTUATION_ALL = "all";
 
+    private final VoiceVariant mVoiceVariant;
+    private final int mRate;
+    private final int mPitch;
+    private final int mPitchRange;
+    private final int mVolume;
+    private final int mPunctuationLevel;
+    private final String mPunctuationCharacters;
+
     public VoiceSettings(SharedPreferences preferences, SpeechSynthesis engine) {
-        mPreferences = preferences;
-        mEngine = engine;
+        mVoiceVariant = readVoiceVariant(preferences);
+        mRate = readRate(preferences, engine);
+        mPitch = readPitch(preferences, engine);
+        mPitchRange = clamp(getPreferenceValue(preferences, PREF_PITCH_RANGE, engine.PitchRange.getDefaultValue()), engine.PitchRange);
+        mVolume = clamp(getPreferenceValue(preferences, PREF_VOLUME, engine.Volume.getDefaultValue()), engine.Volume);
+        mPunctuationLevel = clamp(getPreferenceValue(preferences, PREF_PUNCTUATION_LEVEL, engine.Punctuation.getDefaultValue()), engine.Punctuation);
+        mPunctuationCharacters = preferences.getString(PREF_PUNCTUATION_CHARACTERS, null);
     }
 
     public VoiceVariant getVoiceVariant() {
-        String variant = mPreferences.getString(PREF_VARIANT, null);
+        return mVoiceVariant;
+    }
+
+    public int getRate() {
+        return mRate;
+    }
+
+    public int getPitch() {
+        return mPitch;
+    }
+
+    public int getPitchRange() {
+        return mPitchRange;
+    }
+
+    public int getVolume() {
+        return mVolume;
+    }
+
+    public int getPunctuationLevel() {
+        return mPunctuationLevel;
+    }
+
+    public String getPunctuationCharacters() {
+        return mPunctuationCharacters;
+    }
+
+    private static VoiceVariant readVoiceVariant(SharedPreferences preferences) {
+        String variant = preferences.getString(PREF_VARIANT, null);
         if (variant == null) {
-            int gender = getPreferenceValue(PREF_DEFAULT_GENDER, SpeechSynthesis.GENDER_MALE);
+            int gender = getPreferenceValue(preferences, PREF_DEFAULT_GENDER, SpeechSynthesis.GENDER_MALE);
             if (gender == SpeechSynthesis.GENDER_FEMALE) {
                 return VoiceVariant.parseVoiceVariant(VoiceVariant.FEMALE);
             }
@@ -65,74 +110,65 @@ public class VoiceSettings {
         return VoiceVariant.parseVoiceVariant(variant);
     }
 
-    public int getRate() {
-        int min = mEngine.Rate.getMinValue();
-        int max = mEngine.Rate.getMaxValue();
-
-        int rate = getPreferenceValue(PREF_RATE, Integer.MIN_VALUE);
+    private static int readRate(SharedPreferences preferences, SpeechSynthesis engine) {
+        int rate = getPreferenceValue(preferences, PREF_RATE, Integer.MIN_VALUE);
         if (rate == Integer.MIN_VALUE) {
-            rate = (int)((float)getPreferenceValue(PREF_DEFAULT_RATE, 100) / 100 * (float)mEngine.Rate.getDefaultValue());
+            rate = (int)((float)getPreferenceValue(preferences, PREF_DEFAULT_RATE, 100) / 100 * (float)engine.Rate.getDefaultValue());
         }
-
-        if (rate > max) rate = max;
-        if (rate < min) rate = min;
-        return rate;
+        return clamp(rate, engine.Rate);
     }
 
-    public int getPitch() {
-        int min = mEngine.Pitch.getMinValue();
-        int max = mEngine.Pitch.getMaxValue();
-
-        int pitch = getPreferenceValue(PREF_PITCH, Integer.MIN_VALUE);
+    private static int readPitch(SharedPreferences preferences, SpeechSynthesis engine) {
+        int pitch = getPreferenceValue(preferences, PREF_PITCH, Integer.MIN_VALUE);
         if (pitch == Integer.MIN_VALUE) {
-            pitch = getPreferenceValue(PREF_DEFAULT_PITCH, 100) / 2;
+            pitch = getPreferenceValue(preferences, PREF_DEFAULT_PITCH, 100) / 2;
         }
-
-        if (pitch > max) pitch = max;
-        if (pitch < min) pitch = min;
-        return pitch;
+        return clamp(pitch, engine.Pitch);
     }
 
-    public int getPitchRange() {
-        int min = mEngine.PitchRange.getMinValue();
-        int max = mEngine.PitchRange.getMaxValue();
-
-        int range = getPreferenceValue(PREF_PITCH_RANGE, mEngine.PitchRange.getDefaultValue());
-        if (range > max) range = max;
-        if (range < min) range = min;
-        return range;
+    private static int clamp(int value, SpeechSynthesis.Parameter parameter) {
+        if (value > parameter.getMaxValue()) value = parameter.getMaxValue();
+        if (value < parameter.getMinValue()) value = parameter.getMinValue();
+        return value;
     }
 
-    public int getVolume() {
-        int min = mEngine.Volume.getMinValue();
-        int max = mEngine.Volume.getMaxValue();
-
-        int range = getPreferenceValue(PREF_VOLUME, mEngine.Volume.getDefaultValue());
-        if (range > max) range = max;
-        if (range < min) range = min;
-        return range;
+    private static int getPreferenceValue(SharedPreferences preferences, String preference, int defaultValue) {
+        String prefString = preferences.getString(preference, null);
+        if (prefString == null) {
+            return defaultValue;
+        }
+        return Integer.parseInt(prefString);
     }
 
-    public int getPunctuationLevel() {
-        int min = mEngine.Punctuation.getMinValue();
-        int max = mEngine.Punctuation.getMaxValue();
+    /**
+     * Keeps the current voice settings, rebuilding them only when the
+     * preferences change.
+     */
+    public static class Provider implements SharedPreferences.OnSharedPreferenceChangeListener {
+        private final SharedPreferences mPreferences;
+        private final SpeechSynthesis mEngine;
+        private volatile VoiceSettings mSettings;
+
+        public Provider(SharedPreferences preferences, SpeechSynthesis engine) {
+            mPreferences = preferences;
+            mEngine = engine;
+            mSettings = new VoiceSettings(preferences, engine);
+            // NOTE: SharedPreferences only keeps a weak reference to the listener.
+            preferences.registerOnSharedPreferenceChangeListener(this);
+        }
 
-        int level = getPreferenceValue(PREF_PUNCTUATION_LEVEL, mEngine.Punctuation.getDefaultValue());
-        if (level > max) level = max;
-        if (level < min) level = min;
-        return level;
-    }
+        public VoiceSettings get() {
+            return mSettings;
+        }
 
-    public String getPunctuationCharacters() {
-        return mPreferences.getString(PREF_PUNCTUATION_CHARACTERS, null);
-    }
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences preferences, String key) {
+            mSettings = new VoiceSettings(mPreferences, mEngine);
+        }
 
-    private int getPreferenceValue(String preference, int defaultValue) {
-        String prefString = mPreferences.getString(preference, null);
-        if (prefString == null) {
-            return defaultValue;
+        public void close() {
+            mPreferences.unregisterOnSharedPreferenceChangeListener(this);
         }
-        return Integer.parseInt(prefString);
     }
 
     public JSONObject toJSON() throws JSONException {
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2013 Reece H. Dunn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.reecedunn.espeak;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes PCM audio to a WAV file.
+ *
+ * The audio is written straight from the caller's buffer to the file
+ * channel. The RIFF and data chunk sizes are not known until all the audio
+ * has been written, so they are patched in when the writer is closed.
+ */
+public class WavWriter implements Closeable {
+    public static final int HEADER_SIZE = 44;
+
+    private static final int RIFF_SIZE_OFFSET = 4;
+    private static final int DATA_SIZE_OFFSET = 40;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final int mBytesPerSecond;
+    private long mDataLength = 0;
+
+    public WavWriter(File file, int sampleRate, int channelCount, int bytesPerSample) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+        mBytesPerSecond = sampleRate * channelCount * bytesPerSample;
+
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(new byte[] { 'R', 'I', 'F', 'F' });
+        header.putInt(0); // RIFF chunk size, patched by close()
+        header.put(new byte[] { 'W', 'A', 'V', 'E' });
+        header.put(new byte[] { 'f', 'm', 't', ' ' });
+        header.putInt(16);
+        header.putShort((short)1); // PCM
+        header.putShort((short)channelCount);
+        header.putInt(sampleRate);
+        header.putInt(mBytesPerSecond);
+        header.putShort((short)(channelCount * bytesPerSample));
+        header.putShort((short)(bytesPerSample * 8));
+        header.put(new byte[] { 'd', 'a', 't', 'a' });
+        header.putInt(0); // data chunk size, patched by close()
+        header.flip();
+        writeFully(header);
+    }
+
+    /**
+     * Writes the audio between the buffer's position and limit.
+     */
+    public void write(ByteBuffer audioData) throws IOException {
+        mDataLength += writeFully(audioData);
+    }
+
+    /** The number of bytes of audio written. */
+    public long getDataLength() {
+        return mDataLength;
+    }
+
+    /** The duration of the audio written, in milliseconds. */
+    public long getDurationMillis() {
+        return (mDataLength * 1000) / mBytesPerSecond;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            final ByteBuffer size = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            size.putInt(0, (int)(mDataLength + HEADER_SIZE - 8));
+            mChannel.write(size, RIFF_SIZE_OFFSET);
+
+            size.clear();
+            size.putInt(0, (int)mDataLength);
+            mChannel.write(size, DATA_SIZE_OFFSET);
+        } finally {
+            mFile.close();
+        }
+    }
+
+    private int writeFully(ByteBuffer data) throws IOException {
+        int written = 0;
+        while (data.hasRemaining()) {
+            written += mChannel.write(data);
+        }
+        return written;
+    }
+}
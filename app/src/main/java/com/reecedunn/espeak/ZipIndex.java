@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2013 Reece H. Dunn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.reecedunn.espeak;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The entries of a zip archive stored in a region of a file, such as a raw
+ * resource in the APK.
+ *
+ * The entries are read with positional reads, so they can be read in any
+ * order, and from several threads at once.
+ */
+public class ZipIndex {
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+    public static final int METHOD_STORED = 0;
+    public static final int METHOD_DEFLATED = 8;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static class Entry {
+        public final String name;
+        public final int method;
+        public final long compressedSize;
+        public final long size;
+        private final long mLocalHeaderOffset;
+
+        Entry(String name, int method, long compressedSize, long size, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            mLocalHeaderOffset = localHeaderOffset;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+
+    private final FileChannel mChannel;
+    private final long mOffset;
+    private final long mLength;
+    private final List<Entry> mEntries;
+
+    /**
+     * @param channel The file holding the archive.
+     * @param offset  The position of the archive in the file.
+     * @param length  The length of the archive.
+     * @throws IOException If the central directory could not be read.
+     */
+    public ZipIndex(FileChannel channel, long offset, long length) throws IOException {
+        mChannel = channel;
+        mOffset = offset;
+        mLength = length;
+        mEntries = Collections.unmodifiableList(readCentralDirectory());
+    }
+
+    public List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * Opens a stream of the uncompressed entry data.
+     */
+    public InputStream open(Entry entry) throws IOException {
+        final InputStream data = new RegionInputStream(getDataOffset(entry), entry.compressedSize);
+        switch (entry.method) {
+            case METHOD_STORED:
+                return data;
+            case METHOD_DEFLATED:
+                final Inflater inflater = new Inflater(true);
+                return new InflaterInputStream(data, inflater, 64 * 1024) {
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        inflater.end();
+                    }
+                };
+            default:
+                throw new IOException("Unsupported compression method " + entry.method + " for " + entry.name);
+        }
+    }
+
+    /**
+     * Copies the data of a stored entry to the target without copying it
+     * through the Java heap.
+     */
+    public void transferTo(Entry entry, FileChannel target) throws IOException {
+        transferTo(entry, 0, entry.size, target);
+    }
+
+    /**
+     * Copies part of the data of a stored entry to the target, so a large
+     * entry can be copied a slice at a time.
+     *
+     * @param position The position in the entry data to start copying from.
+     * @param count    The number of bytes to copy.
+     */
+    public void transferTo(Entry entry, long position, long count, FileChannel target) throws IOException {
+        if (entry.method != METHOD_STORED) {
+            throw new IOException("The entry is compressed: " + entry.name);
+        }
+        if (position < 0 || count < 0 || position + count > entry.size) {
+            throw new IOException("The range is outside of the data for " + entry.name);
+        }
+
+        position += getDataOffset(entry);
+        long remaining = count;
+        while (remaining > 0) {
+            final long transferred = mChannel.transferTo(position, remaining, target);
+            if (transferred <= 0) {
+                throw new EOFException("Unexpected end of archive in " + entry.name);
+            }
+            position += transferred;
+            remaining -= transferred;
+        }
+    }
+
+    private long getDataOffset(Entry entry) throws IOException {
+        final ByteBuffer header = read(entry.mLocalHeaderOffset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Invalid local header for " + entry.name);
+        }
+
+        final long offset = entry.mLocalHeaderOffset + LOCAL_HEADER_SIZE + getUnsignedShort(header, 26) + getUnsignedShort(header, 28);
+        if (offset + entry.compressedSize > mLength) {
+            throw new IOException("The data for " + entry.name + " is outside of the archive");
+        }
+        return mOffset + offset;
+    }
+
+    private List<Entry> readCentralDirectory() throws IOException {
+        // The end of central directory record is followed by a comment of up to 64K.
+        final int tailLength = (int)Math.min(mLength, END_SIZE + MAX_COMMENT_SIZE);
+        final ByteBuffer tail = read(mLength - tailLength, tailLength);
+        int end = tailLength - END_SIZE;
+        while (end >= 0 && tail.getInt(end) != END_SIGNATURE) {
+            --end;
+        }
+        if (end < 0) {
+            throw new IOException("The archive has no end of central directory record");
+        }
+
+        final int count = getUnsignedShort(tail, end + 10);
+        final long directorySize = getUnsignedInt(tail, end + 12);
+        final long directoryOffset = getUnsignedInt(tail, end + 16);
+        if (directoryOffset + directorySize > mLength) {
+            throw new IOException("The central directory is outside of the archive");
+        }
+
+        final ByteBuffer directory = read(directoryOffset, (int)directorySize);
+        final List<Entry> entries = new ArrayList<Entry>(count);
+        int pos = 0;
+        for (int i = 0; i < count; ++i) {
+            if (pos + CENTRAL_HEADER_SIZE > directorySize || directory.getInt(pos) != CENTRAL_HEADER_SIGNATURE) {
+                throw new IOException("Invalid central directory header " + i);
+            }
+
+            final int method = getUnsignedShort(directory, pos + 10);
+            final long compressedSize = getUnsignedInt(directory, pos + 20);
+            final long size = getUnsignedInt(directory, pos + 24);
+            final int nameLength = getUnsignedShort(directory, pos + 28);
+            final int extraLength = getUnsignedShort(directory, pos + 30);
+            final int commentLength = getUnsignedShort(directory, pos + 32);
+            final long localHeaderOffset = getUnsignedInt(directory, pos + 42);
+            if (pos + CENTRAL_HEADER_SIZE + nameLength > directorySize) {
+                throw new IOException("Invalid central directory header " + i);
+            }
+            if (compressedSize == 0xFFFFFFFFL || size == 0xFFFFFFFFL || localHeaderOffset == 0xFFFFFFFFL) {
+                throw new IOException("Zip64 archives are not supported");
+            }
+
+            final byte[] name = new byte[nameLength];
+            directory.position(pos + CENTRAL_HEADER_SIZE);
+            directory.get(name);
+            entries.add(new Entry(new String(name, UTF_8), method, compressedSize, size, localHeaderOffset));
+            pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return entries;
+    }
+
+    /** Reads the bytes at the position in the archive. */
+    private ByteBuffer read(long position, int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (mChannel.read(buffer, mOffset + position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of archive");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int getUnsignedShort(ByteBuffer buffer, int index) {
+        return buffer.getShort(index) & 0xFFFF;
+    }
+
+    private static long getUnsignedInt(ByteBuffer buffer, int index) {
+        return buffer.getInt(index) & 0xFFFFFFFFL;
+    }
+
+    /** Reads a region of the file with positional reads, so it does not share a file position. */
+    private class RegionInputStream extends InputStream {
+        private long mPosition;
+        private long mRemaining;
+
+        RegionInputStream(long position, long length) {
+            mPosition = position;
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] value = new byte[1];
+            return (read(value, 0, 1) == 1) ? (value[0] & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (mRemaining == 0) {
+                return -1;
+            }
+
+            final int count = mChannel.read(ByteBuffer.wrap(buffer, offset, (int)Math.min(length, mRemaining)), mPosition);
+            if (count < 0) {
+                throw new EOFException("Unexpected end of archive");
+            }
+            mPosition += count;
+            mRemaining -= count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return (int)Math.min(mRemaining, Integer.MAX_VALUE);
+        }
+    }
+}
@@ -2,7 +2,6 @@ package com.reecedunn.espeak;
 
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
-import java.io.File;
 import java.io.IOException;
 
 import android.app.Activity;
@@ -42,13 +41,12 @@ public class eSpeakActivity extends Activity {
 
     private Model voskSpeechModel;
     private SpeechService voskService;
-    private SpeechSynthesis ttsEspeakEngine;
+    private volatile SpeechSynthesis ttsEspeakEngine;
     private PowerManager.WakeLock wakeLock;
     private Translator translator;
 
     private boolean translatorReady = false;
     private boolean isListening = false;
-    private boolean isSpeaking = false;
     private boolean translationRunning = false;
 
     private String lastSpoken = "";
@@ -70,7 +68,7 @@ public class eSpeakActivity extends Activity {
     private String selectedTargetLanguage;
     private final String PREFS = "settings";
 
-    private final ExecutorService ttsExecutor = Executors.newFixedThreadPool(1);
+    private volatile VoiceIndex ttsVoices = new VoiceIndex(new ArrayList<Voice>());
     private final ExecutorService translationExecutor = Executors.newSingleThreadExecutor();
     private boolean keepGoogleListening = false;
     private SpeechRecognizer googleRecognizer;
@@ -164,7 +162,9 @@ public class eSpeakActivity extends Activity {
         });
 
         // 🗣 Initialize systems
-        initializeTTSSpeakEngine();
+        // The engine is created off the UI thread, as it waits for the
+        // engine thread, which may be synthesizing for the TTS service.
+        translationExecutor.execute(this::initializeTTSSpeakEngine);
         initTranslator();
         initVosk();
 // 🌊 Start gentle pulse animation while initializing
@@ -500,28 +500,35 @@ public class eSpeakActivity extends Activity {
     private void initializeTTSSpeakEngine() {
         try {
             CheckVoiceData.installVoiceDataIfMissing(this);
-            ttsEspeakEngine = new SpeechSynthesis(this, null);
-            File dir = CheckVoiceData.getDataPath(this);
-            ttsEspeakEngine.nativeCreate(dir.getAbsolutePath());
-            ttsEspeakEngine.nativeSetVoiceByName("fa");
-            ttsEspeakEngine.Rate.setValue(selectedSpeed);
-            ttsEspeakEngine.Pitch.setValue(selectedPitch);
+            SpeechSynthesis engine = new SpeechSynthesis(this, null);
+            engine.setPhraseCache(PhraseCache.getInstance(this));
+            engine.setVoiceByName("fa");
+            engine.Rate.setValue(selectedSpeed);
+            engine.Pitch.setValue(selectedPitch);
+            ttsVoices = new VoiceIndex(engine.getAvailableVoices());
+            synchronized (this) {
+                if (!isDestroyed()) {
+                    ttsEspeakEngine = engine;
+                    return;
+                }
+            }
+            engine.release();
         } catch (Exception e) { Log.e(TAG, "Engine init failed", e); }
     }
 
     private void speakTranslated(String text) {
-        if (ttsEspeakEngine == null || text.isEmpty() || isSpeaking) return;
-        isSpeaking = true;
-        ttsExecutor.execute(() -> {
-            try {
-                String voiceCode = selectedTargetLanguage.equals(TranslateLanguage.HINDI) ? "hi" :
-                        selectedTargetLanguage.equals(TranslateLanguage.ENGLISH) ? "en" : "fa";
-                ttsEspeakEngine.nativeSetVoiceByName(voiceCode);
-                ttsEspeakEngine.Pitch.setValue(selectedPitch);
-                ttsEspeakEngine.synthesize(text, false);
-            } catch (Exception e) { Log.e(TAG, "Speak failed: " + e.getMessage()); }
-            finally { isSpeaking = false; }
-        });
+        final SpeechSynthesis engine = ttsEspeakEngine;
+        if (engine == null || text.isEmpty()) return;
+        String voiceCode = selectedTargetLanguage.equals(TranslateLanguage.HINDI) ? "hi" :
+                selectedTargetLanguage.equals(TranslateLanguage.ENGLISH) ? "en" : "fa";
+        // Matched by locale, as the voice names are the full language tags (e.g. en-gb).
+        Voice voice = ttsVoices.findDefault(voiceCode, "", "").first;
+        if (voice == null) { Log.e(TAG, "Speak failed: no voice for " + voiceCode); return; }
+        // Queued on the engine's synthesis thread, so the next phrase is
+        // ready to play as soon as the current one finishes.
+        engine.submit(text, false,
+                EngineSettings.forVoice(engine, voice, selectedSpeed, selectedPitch),
+                SpeechSynthesis.ChunkSchedule.LOW_LATENCY, null);
     }
 
     private void toggleLiveTranslate() {
@@ -626,7 +633,15 @@ public class eSpeakActivity extends Activity {
         if (translator != null) translator.close();
         if (wakeLock != null && wakeLock.isHeld()) wakeLock.release();
         translationExecutor.shutdownNow();
-        ttsExecutor.shutdownNow();
+
+        // The engine owns an audio output and native buffers, so it is
+        // released rather than left for the next activity instance.
+        final SpeechSynthesis engine;
+        synchronized (this) {
+            engine = ttsEspeakEngine;
+            ttsEspeakEngine = null;
+        }
+        if (engine != null) engine.release();
     }
 
     @Override protected void onPause() {
@@ -98,7 +98,10 @@ public class ImportVoicePreference extends DialogPreference {
                     protected File doInBackground(Object... objects) {
                         File source = (File)mDictionaries.getSelectedItem();
                         if (source != null) {
-                            File destination = new File(CheckVoiceData.getDataPath(getContext()), source.getName());
+                            // The data path does not exist when the voice data is read from the APK.
+                            File dataPath = CheckVoiceData.getDataPath(getContext());
+                            dataPath.mkdirs();
+                            File destination = new File(dataPath, source.getName());
                             try {
                                 byte[] data = FileUtils.readBinary(source);
                                 FileUtils.write(destination, data);